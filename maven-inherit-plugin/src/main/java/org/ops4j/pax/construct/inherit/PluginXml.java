@@ -37,7 +37,13 @@ public class PluginXml
     private static final String EXECUTE_GOAL = "executeGoal";
     private static final String EXECUTE_PHASE = "executePhase";
 
+    /**
+     * Parser released by each thread, kept so its internal buffers can be reused for the next document
+     */
+    private static final ThreadLocal PARSER_POOL = new ThreadLocal();
+
     private final File m_file;
+    private final String m_encoding;
     private Xpp3Dom m_xml;
 
     /**
@@ -52,13 +58,27 @@ public class PluginXml
     {
         m_file = file;
 
-        XmlPullParser parser = new MXParser();
+        XmlPullParser parser = (XmlPullParser) PARSER_POOL.get();
+        if( null == parser )
+        {
+            parser = new MXParser();
+        }
+        else
+        {
+            PARSER_POOL.set( null );
+        }
+
         Reader reader = StreamFactory.newXmlReader( m_file );
         parser.setInput( reader );
 
         m_xml = Xpp3DomBuilder.build( parser, false );
 
+        // remember the encoding, so we don't have to sniff the file again when writing
+        m_encoding = StreamFactory.getXmlEncoding( reader );
         IOUtil.close( reader );
+
+        // setInput resets the parser before the next document
+        PARSER_POOL.set( parser );
     }
 
     /**
@@ -301,13 +321,12 @@ public class PluginXml
     public void write()
         throws IOException
     {
-        String encoding = StreamFactory.getXmlEncoding( m_file );
         Writer writer = StreamFactory.newXmlWriter( m_file );
 
         XmlSerializer serializer = new PluginSerializer();
 
         serializer.setOutput( writer );
-        serializer.startDocument( encoding, null );
+        serializer.startDocument( m_encoding, null );
         m_xml.writeToSerializer( null, serializer );
         serializer.endDocument();
 
@@ -127,19 +127,36 @@ final class StreamFactory
         try
         {
             reader = newXmlReader( xmlFile );
-            return ( (XmlStreamReader) reader ).getEncoding();
+            return getXmlEncoding( reader );
         }
         catch( IOException e )
         {
             return System.getProperty( "file.encoding" );
         }
-        catch( NoClassDefFoundError e )
-        {
-            return System.getProperty( "file.encoding" );
-        }
         finally
         {
             IOUtil.close( reader );
         }
     }
+
+    /**
+     * @param xmlReader reader from {@link #newXmlReader(File)}, which has already sniffed the XML encoding
+     * @return XML encoding used by the reader, otherwise the current platform encoding
+     */
+    public static String getXmlEncoding( Reader xmlReader )
+    {
+        try
+        {
+            if( xmlReader instanceof XmlStreamReader )
+            {
+                return ( (XmlStreamReader) xmlReader ).getEncoding();
+            }
+        }
+        catch( NoClassDefFoundError e )
+        {
+            // fall back to platform encoding
+        }
+
+        return System.getProperty( "file.encoding" );
+    }
 }
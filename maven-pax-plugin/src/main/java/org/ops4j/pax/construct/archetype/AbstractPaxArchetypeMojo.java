@@ -51,6 +51,7 @@ import org.codehaus.plexus.util.DirectoryScanner;
 import org.codehaus.plexus.util.FileUtils;
 import org.ops4j.pax.construct.util.BndUtils;
 import org.ops4j.pax.construct.util.BndUtils.Bnd;
+import org.ops4j.pax.construct.util.CacheUtils;
 import org.ops4j.pax.construct.util.DirUtils;
 import org.ops4j.pax.construct.util.PomUtils;
 import org.ops4j.pax.construct.util.PomUtils.Pom;
@@ -322,6 +323,8 @@ public abstract class AbstractPaxArchetypeMojo extends AbstractMojo
     public final void execute()
         throws MojoExecutionException
     {
+        CacheUtils.beginSession( this );
+
         updateFields();
         createModuleTree();
 
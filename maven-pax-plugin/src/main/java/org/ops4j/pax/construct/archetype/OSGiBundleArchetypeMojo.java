@@ -322,10 +322,10 @@ public class OSGiBundleArchetypeMojo extends AbstractPaxArchetypeMojo
             throw new MojoExecutionException( "Unable to find settings POM" );
         }
 
-        // Merge in the following order, so child elements combine properly!
-        pom.mergeSection( customSettings, "build/resources", "build", false );
-        pom.mergeSection( pluginSettings, "build/pluginManagement/plugins", "build", false );
-        pom.mergeSection( customSettings, "build/plugins", "build", false );
+        // Merge in the following order, so child elements combine properly! (settings are temporary, so just move them)
+        pom.moveSection( customSettings, "build/resources", "build", false );
+        pom.moveSection( pluginSettings, "build/pluginManagement/plugins", "build", false );
+        pom.moveSection( customSettings, "build/plugins", "build", false );
 
         // always tie the pax-plugin to a specific version (helps with reproducible builds)
         pom.updatePluginVersion( "org.ops4j", "maven-pax-plugin", pluginVersion );
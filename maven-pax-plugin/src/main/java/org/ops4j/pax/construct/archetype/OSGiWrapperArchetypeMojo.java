@@ -508,6 +508,7 @@ public class OSGiWrapperArchetypeMojo extends AbstractPaxArchetypeMojo
     private List processDependencies( Pom pom, Set artifacts )
     {
         List newDependencyPoms = new ArrayList();
+        List newDependencies = new ArrayList();
         for( Iterator i = artifacts.iterator(); i.hasNext(); )
         {
             Artifact artifact = (Artifact) i.next();
@@ -521,7 +522,7 @@ public class OSGiWrapperArchetypeMojo extends AbstractPaxArchetypeMojo
                     newDependencyPoms.add( artifact );
                 }
                 // copy dependency to current wrapper pom (not all require wrapping)
-                else if( addWrapperDependency( pom, artifact ) )
+                else if( addWrapperDependency( pom, artifact, newDependencies ) )
                 {
                     m_candidateIds.add( candidateId );
                     m_wrappedIds.add( candidateId );
@@ -529,6 +530,9 @@ public class OSGiWrapperArchetypeMojo extends AbstractPaxArchetypeMojo
             }
         }
 
+        // merge the collected dependencies in a single pass
+        pom.addDependencies( newDependencies, true );
+
         return newDependencyPoms;
     }
 
@@ -600,19 +604,24 @@ public class OSGiWrapperArchetypeMojo extends AbstractPaxArchetypeMojo
      * 
      * @param pom Maven project model
      * @param artifact wrapper dependency
+     * @param dependencies collects dependencies to be added to the Maven project
      * @return true if the dependency should be wrapped, otherwise false
      */
-    private boolean addWrapperDependency( Pom pom, Artifact artifact )
+    private boolean addWrapperDependency( Pom pom, Artifact artifact, List dependencies )
     {
         if( m_excludedIds.contains( artifact.getGroupId() + ':' + artifact.getArtifactId() ) )
         {
+            // exclusions attach to the top-most dependency, so add any collected dependencies first
+            pom.addDependencies( dependencies, true );
+            dependencies.clear();
+
             // exclude this dependency from current POM rather than wrapping it here
             pom.addExclusion( artifact.getGroupId(), artifact.getArtifactId(), true );
             return false;
         }
         else if( PomUtils.isBundleArtifact( artifact, getResolver(), getRemoteRepos(), getLocalRepo(), testMetadata ) )
         {
-            pom.addDependency( getBundleDependency( artifact ), true );
+            dependencies.add( getBundleDependency( artifact ) );
             return false;
         }
         else
@@ -627,7 +636,7 @@ public class OSGiWrapperArchetypeMojo extends AbstractPaxArchetypeMojo
                 artifact.setVersion( existingVersion );
             }
 
-            pom.addDependency( getWrappedDependency( artifact ), true );
+            dependencies.add( getWrappedDependency( artifact ) );
             return ( null == existingVersion );
         }
     }
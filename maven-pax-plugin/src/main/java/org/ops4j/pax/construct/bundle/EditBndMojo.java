@@ -0,0 +1,256 @@
+package org.ops4j.pax.construct.bundle;
+
+/*
+ * Copyright 2007 Stuart McCulloch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.ops4j.pax.construct.util.BndInstruction;
+import org.ops4j.pax.construct.util.BndInstruction.Clause;
+import org.ops4j.pax.construct.util.BndUtils;
+import org.ops4j.pax.construct.util.BndUtils.Bnd;
+import org.ops4j.pax.construct.util.CacheUtils;
+import org.ops4j.pax.construct.util.DirUtils;
+import org.ops4j.pax.construct.util.DirUtils.PomVisitor;
+import org.ops4j.pax.construct.util.PomUtils.Pom;
+
+/**
+ * Apply the same Bnd instruction edit to every bundle in the project tree, updating 'osgi.bnd' files in parallel
+ * 
+ * <code><pre>
+ *   mvn pax:edit-bnd -Ddirective=... [-Dinstruction=...] [-DaddClauses=...] [-DremoveClauses=...] [-Dremove]
+ * </pre></code>
+ * 
+ * @goal edit-bnd
+ * @aggregator true
+ * 
+ * @requiresProject false
+ */
+public class EditBndMojo extends AbstractMojo
+{
+    /**
+     * Summary for Bnd files that were written
+     */
+    private static final String UPDATED = "Updated";
+
+    /**
+     * A directory in the same project tree.
+     * 
+     * @parameter expression="${baseDirectory}" default-value="${project.basedir}"
+     */
+    private File baseDirectory;
+
+    /**
+     * The Bnd directive to edit, such as Export-Package or -nouses.
+     * 
+     * @parameter expression="${directive}"
+     * @required
+     */
+    private String directive;
+
+    /**
+     * New instruction for the directive.
+     * 
+     * @parameter expression="${instruction}"
+     */
+    private String instruction;
+
+    /**
+     * Comma separated clauses to add, each replacing any existing clauses with the same name (adds the directive if
+     * necessary).
+     * 
+     * @parameter expression="${addClauses}"
+     */
+    private String addClauses;
+
+    /**
+     * Comma separated names of clauses to remove.
+     * 
+     * @parameter expression="${removeClauses}"
+     */
+    private String removeClauses;
+
+    /**
+     * When true, remove the directive, can't be combined with an instruction or clause edits.
+     * 
+     * @parameter expression="${remove}"
+     */
+    private boolean remove;
+
+    /**
+     * When true, overwrite existing instructions for the directive.
+     * 
+     * @parameter expression="${overwrite}"
+     */
+    private boolean overwrite;
+
+    /**
+     * Number of threads used to edit Bnd files, defaults to one per available processor.
+     * 
+     * @parameter expression="${parallelism}" default-value="0"
+     */
+    private int parallelism;
+
+    /**
+     * Outcome of each edit, keyed by Bnd file
+     */
+    private final Map m_summary = new TreeMap();
+
+    /**
+     * Number of Bnd files that could not be edited
+     */
+    private int m_failures;
+
+    /**
+     * {@inheritDoc}
+     */
+    public void execute()
+        throws MojoExecutionException
+    {
+        if( null == instruction && null == addClauses && null == removeClauses && !remove )
+        {
+            throw new MojoExecutionException( "Nothing to do, please provide an instruction or clauses to edit" );
+        }
+        else if( remove && ( null != instruction || null != addClauses || null != removeClauses ) )
+        {
+            throw new MojoExecutionException( "Cannot remove the directive and edit it at the same time" );
+        }
+
+        CacheUtils.beginSession( this );
+
+        final BndInstruction clausesToAdd = BndInstruction.parse( addClauses );
+        final BndInstruction clausesToRemove = BndInstruction.parse( removeClauses );
+
+        // bundles in the same tree are independent, so edit them as they are found
+        DirUtils.forEachPom( baseDirectory, new PomVisitor()
+        {
+            public void visit( Pom pom )
+            {
+                File bndFile = new File( pom.getBasedir(), "osgi.bnd" );
+                if( bndFile.exists() )
+                {
+                    editBndFile( bndFile, clausesToAdd, clausesToRemove );
+                }
+            }
+        }, parallelism );
+
+        int written = 0;
+        for( Iterator i = m_summary.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            String outcome = (String) entry.getValue();
+
+            getLog().info( outcome + ' ' + entry.getKey() );
+            if( UPDATED.equals( outcome ) )
+            {
+                written++;
+            }
+        }
+
+        getLog().info( "Wrote " + written + " of " + m_summary.size() + " Bnd file(s)" );
+
+        if( m_failures > 0 )
+        {
+            throw new MojoExecutionException( "Problem editing " + m_failures + " Bnd file(s)" );
+        }
+    }
+
+    /**
+     * Apply the requested edits to a single Bnd file, may be called concurrently for different files
+     * 
+     * @param bndFile Bnd instruction file
+     * @param clausesToAdd clauses to add to the directive
+     * @param clausesToRemove clauses to remove from the directive
+     */
+    void editBndFile( File bndFile, BndInstruction clausesToAdd, BndInstruction clausesToRemove )
+    {
+        Bnd bnd;
+        try
+        {
+            bnd = BndUtils.readBnd( bndFile );
+        }
+        catch( IOException e )
+        {
+            record( bndFile, "Failed to read", true );
+            return;
+        }
+
+        boolean skipped = false;
+        if( remove )
+        {
+            bnd.removeInstruction( directive );
+        }
+        else if( null != instruction )
+        {
+            // keep the existing instruction, but still apply any clause edits to it
+            skipped = !overwrite && null != bnd.getInstruction( directive );
+            if( !skipped )
+            {
+                bnd.setInstruction( directive, instruction, true );
+            }
+        }
+
+        if( !remove )
+        {
+            BndInstruction clauses = bnd.getClauses( directive );
+            for( Iterator i = clausesToRemove.iterator(); i.hasNext(); )
+            {
+                clauses.removeClauses( ( (Clause) i.next() ).getName() );
+            }
+            clauses.mergeClauses( clausesToAdd );
+        }
+
+        try
+        {
+            if( bnd.write() )
+            {
+                record( bnd.getFile(), UPDATED, false );
+            }
+            else if( skipped )
+            {
+                record( bnd.getFile(), "Skipped existing " + directive + " in", false );
+            }
+            else
+            {
+                record( bnd.getFile(), "Unchanged", false );
+            }
+        }
+        catch( IOException e )
+        {
+            record( bnd.getFile(), "Failed to write", true );
+        }
+    }
+
+    /**
+     * @param bndFile Bnd instruction file
+     * @param outcome summary of what happened
+     * @param failed true if the file could not be edited
+     */
+    private synchronized void record( File bndFile, String outcome, boolean failed )
+    {
+        m_summary.put( bndFile, outcome );
+        if( failed )
+        {
+            m_failures++;
+        }
+    }
+}
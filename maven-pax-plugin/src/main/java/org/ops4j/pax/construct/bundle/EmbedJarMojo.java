@@ -27,6 +27,8 @@ import org.apache.maven.artifact.repository.ArtifactRepository;
 import org.apache.maven.model.Dependency;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.ops4j.pax.construct.util.BndInstruction;
+import org.ops4j.pax.construct.util.BndInstruction.Clause;
 import org.ops4j.pax.construct.util.BndUtils;
 import org.ops4j.pax.construct.util.BndUtils.Bnd;
 import org.ops4j.pax.construct.util.PomUtils;
@@ -229,12 +231,7 @@ public class EmbedJarMojo extends AbstractMojo
             throw new MojoExecutionException( "Problem reading Bnd file: " + targetDirectory + "/osgi.bnd" );
         }
 
-        final String embedKey = artifactId + ";groupId=" + groupId;
-
-        String embedDependency = bnd.getInstruction( "Embed-Dependency" );
-        embedDependency = addEmbedClause( embedKey, embedDependency );
-
-        bnd.setInstruction( "Embed-Dependency", embedDependency, true );
+        addEmbedClause( bnd.getClauses( "Embed-Dependency" ) );
 
         if( exportContents != null )
         {
@@ -252,37 +249,25 @@ public class EmbedJarMojo extends AbstractMojo
     }
 
     /**
-     * @param embedKey partial clause identifying jarfile to embed
-     * @param embedDependency comma separated list of clauses
-     * @return updated Embed-Dependency instruction
+     * @param embedDependency parsed Embed-Dependency instruction, updated in place
      */
-    private String addEmbedClause( String embedKey, String embedDependency )
+    private void addEmbedClause( BndInstruction embedDependency )
     {
-        final String embedClause = embedKey + ";inline=" + unpack;
-
-        if( null == embedDependency )
-        {
-            return embedClause;
-        }
-
-        StringBuffer buf = new StringBuffer();
-
-        String[] clauses = embedDependency.split( "," );
-        for( int i = 0; i < clauses.length; i++ )
+        List clauses = embedDependency.getClauses( artifactId );
+        for( int i = clauses.size() - 1; i >= 0; i-- )
         {
-            final String c = clauses[i].trim();
+            Clause c = (Clause) clauses.get( i );
 
             // remove any clauses matching the one we're adding
-            if( c.length() > 0 && !c.startsWith( embedKey ) )
+            if( groupId.equals( c.getAttribute( "groupId" ) ) )
             {
-                buf.append( c );
-                buf.append( ',' );
+                embedDependency.removeClause( c );
             }
         }
 
         // add the new clause
-        buf.append( embedClause );
-
-        return buf.toString();
+        Clause embedClause = embedDependency.addClause( artifactId );
+        embedClause.setAttribute( "groupId", groupId );
+        embedClause.setAttribute( "inline", String.valueOf( unpack ) );
     }
 }
@@ -19,15 +19,17 @@ package org.ops4j.pax.construct.bundle;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.Map;
 
 import org.apache.maven.model.Dependency;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.codehaus.plexus.util.FileUtils;
+import org.ops4j.pax.construct.util.CacheUtils;
 import org.ops4j.pax.construct.util.DirUtils;
-import org.ops4j.pax.construct.util.PomIterator;
 import org.ops4j.pax.construct.util.PomUtils;
 import org.ops4j.pax.construct.util.PomUtils.Pom;
+import org.ops4j.pax.construct.util.PomWorkspace;
 
 /**
  * Move a bundle project to a new directory, updating and creating POMs as necessary
@@ -113,6 +115,8 @@ public class MoveBundleMojo extends AbstractMojo
     public void execute()
         throws MojoExecutionException
     {
+        CacheUtils.beginSession( this );
+
         Pom oldBundlePom = locateBundlePom( baseDirectory, bundleName );
 
         File oldBundleDir = oldBundlePom.getBasedir();
@@ -226,14 +230,18 @@ public class MoveBundleMojo extends AbstractMojo
 
         try
         {
-            // add first, in case of problems later
+            PomWorkspace workspace = new PomWorkspace( 1 );
+
             newModulesPom.addModule( moduleName, true );
-            newModulesPom.write();
+            workspace.add( newModulesPom );
 
             // open POM above the old directory, and remove the bundle module
-            Pom oldModulesPom = PomUtils.readPom( oldBundleDir.getParentFile() );
+            Pom oldModulesPom = workspace.resolve( PomUtils.readPom( oldBundleDir.getParentFile() ) );
             oldModulesPom.removeModule( moduleName );
-            oldModulesPom.write();
+            workspace.add( oldModulesPom );
+
+            // both POMs are replaced together, so the bundle is never orphaned
+            workspace.commit();
         }
         catch( IOException e )
         {
@@ -249,21 +257,32 @@ public class MoveBundleMojo extends AbstractMojo
      */
     private void changeBundleGroup( Pom bundlePom, String newGroupId )
     {
+        // one writer thread per available processor
+        PomWorkspace workspace = new PomWorkspace( 0 );
+
         try
         {
-            // update bundle first, in case of failure
             String oldGroupId = bundlePom.getGroupId();
+            String artifactId = bundlePom.getArtifactId();
+
+            // only visit POMs known to reference the bundle, found before anything is edited
+            Map references = DirUtils.findReferences( bundlePom.getBasedir(), oldGroupId, artifactId );
+
             bundlePom.setGroupId( newGroupId );
-            bundlePom.write();
+            workspace.add( bundlePom );
 
-            for( Iterator i = new PomIterator( bundlePom.getBasedir() ); i.hasNext(); )
+            for( Iterator i = references.keySet().iterator(); i.hasNext(); )
             {
                 Pom pom = (Pom) i.next();
-                if( !pom.equals( bundlePom ) )
+                if( !pom.getFile().equals( bundlePom.getFile() ) )
                 {
-                    updateBundleReferences( pom, oldGroupId, bundlePom.getGroupId(), bundlePom.getArtifactId() );
+                    updateBundleReferences( pom, oldGroupId, newGroupId, artifactId, workspace );
                 }
             }
+
+            // all or nothing: edited POMs are only replaced once every one of them has been written
+            int written = workspace.commit();
+            getLog().info( "Wrote " + written + " changed Maven POM(s)" );
         }
         catch( IOException e )
         {
@@ -278,8 +297,10 @@ public class MoveBundleMojo extends AbstractMojo
      * @param oldGroupId old bundle group id
      * @param newGroupId new bundle group id
      * @param artifactId bundle artifact id
+     * @param workspace collects edited POMs
      */
-    private void updateBundleReferences( Pom pom, String oldGroupId, String newGroupId, String artifactId )
+    private void updateBundleReferences( Pom pom, String oldGroupId, String newGroupId, String artifactId,
+        PomWorkspace workspace )
     {
         Dependency dependency = new Dependency();
         dependency.setGroupId( oldGroupId );
@@ -288,15 +309,7 @@ public class MoveBundleMojo extends AbstractMojo
         if( pom.updateDependencyGroup( dependency, newGroupId ) )
         {
             getLog().info( "Updating " + newGroupId + ':' + artifactId + " in " + pom );
-
-            try
-            {
-                pom.write();
-            }
-            catch( IOException e )
-            {
-                getLog().warn( "Problem writing Maven POM: " + pom.getFile() );
-            }
+            workspace.add( pom );
         }
     }
 }
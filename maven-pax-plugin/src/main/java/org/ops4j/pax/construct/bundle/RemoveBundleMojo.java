@@ -19,13 +19,18 @@ package org.ops4j.pax.construct.bundle;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.Map;
 
 import org.apache.maven.model.Dependency;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.codehaus.plexus.util.FileUtils;
-import org.ops4j.pax.construct.util.PomIterator;
+import org.ops4j.pax.construct.util.BndUtils;
+import org.ops4j.pax.construct.util.CacheUtils;
+import org.ops4j.pax.construct.util.DirUtils;
+import org.ops4j.pax.construct.util.PomUtils;
 import org.ops4j.pax.construct.util.PomUtils.Pom;
+import org.ops4j.pax.construct.util.PomWorkspace;
 
 /**
  * Remove a bundle project and any references to it in the project tree, updating POMs as necessary
@@ -69,6 +74,8 @@ public class RemoveBundleMojo extends AbstractMojo
     public void execute()
         throws MojoExecutionException
     {
+        CacheUtils.beginSession( this );
+
         Pom bundlePom = MoveBundleMojo.locateBundlePom( baseDirectory, bundleName );
 
         // protect against removing the wrong directory
@@ -77,20 +84,40 @@ public class RemoveBundleMojo extends AbstractMojo
             throw new MojoExecutionException( "Ignoring multi-module project " + bundleName );
         }
 
+        // one writer thread per available processor
+        PomWorkspace workspace = new PomWorkspace( 0 );
+
         if( repair )
         {
-            for( Iterator i = new PomIterator( baseDirectory ); i.hasNext(); )
+            String groupId = bundlePom.getGroupId();
+            String artifactId = bundlePom.getArtifactId();
+
+            // only visit POMs known to reference the bundle
+            Map references = DirUtils.findReferences( baseDirectory, groupId, artifactId );
+            for( Iterator i = references.keySet().iterator(); i.hasNext(); )
             {
                 Pom pom = (Pom) i.next();
                 if( !pom.equals( bundlePom ) )
                 {
-                    removeBundleReferences( pom, bundlePom );
+                    removeBundleReferences( pom, bundlePom, workspace );
                 }
             }
         }
 
         // now do the actual removal work
-        dropBundleOwnership( bundlePom );
+        dropBundleOwnership( bundlePom, workspace );
+
+        try
+        {
+            // write all edited POMs before deleting anything
+            int written = workspace.commit();
+            getLog().info( "Wrote " + written + " changed Maven POM(s)" );
+        }
+        catch( IOException e )
+        {
+            throw new MojoExecutionException( "Problem writing Maven POMs, bundle " + bundleName + " not removed", e );
+        }
+
         removeBundleFiles( bundlePom );
     }
 
@@ -98,23 +125,18 @@ public class RemoveBundleMojo extends AbstractMojo
      * Remove the bundle's module from the POM directly above it
      * 
      * @param bundlePom the Maven POM for the bundle
+     * @param workspace collects edited POMs
      */
-    private void dropBundleOwnership( Pom bundlePom )
+    private void dropBundleOwnership( Pom bundlePom, PomWorkspace workspace )
     {
         String moduleName = bundlePom.getBasedir().getName();
 
-        try
+        // may already have been edited to remove references
+        Pom modulesPom = workspace.resolve( bundlePom.getContainingPom() );
+        if( null != modulesPom )
         {
-            Pom modulesPom = bundlePom.getContainingPom();
-            if( null != modulesPom )
-            {
-                modulesPom.removeModule( moduleName );
-                modulesPom.write();
-            }
-        }
-        catch( IOException e )
-        {
-            getLog().warn( "Module " + moduleName + " not found in containing POM" );
+            modulesPom.removeModule( moduleName );
+            workspace.add( modulesPom );
         }
     }
 
@@ -136,6 +158,11 @@ public class RemoveBundleMojo extends AbstractMojo
         {
             getLog().warn( "Unable to remove directory " + bundleDir, e );
         }
+        finally
+        {
+            PomUtils.evictPom( bundlePom.getFile() );
+            BndUtils.evictBnd( new File( bundleDir, "osgi.bnd" ) );
+        }
     }
 
     /**
@@ -143,8 +170,9 @@ public class RemoveBundleMojo extends AbstractMojo
      * 
      * @param pom a Maven POM in the project tree
      * @param bundlePom the Maven POM for the bundle
+     * @param workspace collects edited POMs
      */
-    private void removeBundleReferences( Pom pom, Pom bundlePom )
+    private void removeBundleReferences( Pom pom, Pom bundlePom, PomWorkspace workspace )
     {
         Dependency dependency = new Dependency();
         dependency.setGroupId( bundlePom.getGroupId() );
@@ -153,15 +181,7 @@ public class RemoveBundleMojo extends AbstractMojo
         if( pom.removeDependency( dependency ) )
         {
             getLog().info( "Removing " + bundlePom + " from " + pom );
-
-            try
-            {
-                pom.write();
-            }
-            catch( IOException e )
-            {
-                getLog().warn( "Problem writing Maven POM: " + pom.getFile() );
-            }
+            workspace.add( pom );
         }
     }
 }
@@ -26,6 +26,7 @@ import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -56,6 +57,7 @@ import org.codehaus.plexus.util.xml.Xpp3Dom;
 import org.codehaus.plexus.util.xml.Xpp3DomBuilder;
 import org.codehaus.plexus.util.xml.Xpp3DomWriter;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.ops4j.pax.construct.util.CacheUtils;
 import org.ops4j.pax.construct.util.DirUtils;
 import org.ops4j.pax.construct.util.DirUtils.EntryFilter;
 import org.ops4j.pax.construct.util.PomUtils;
@@ -118,6 +120,11 @@ public class EclipseOSGiMojo extends EclipsePlugin
      */
     private List m_embeddableDependencies;
 
+    /**
+     * Dependencies (groupId:artifactId) that refer to projects in the local file-system
+     */
+    private Set m_localProjectIds;
+
     /**
      * {@inheritDoc}
      */
@@ -219,6 +226,11 @@ public class EclipseOSGiMojo extends EclipsePlugin
     private void writeBundleConfiguration( IdeDependency[] deps )
         throws MojoExecutionException
     {
+        if( "CUSTOM".equalsIgnoreCase( fixDependencies ) )
+        {
+            findLocalProjects( deps );
+        }
+
         for( int i = 0; i < deps.length; i++ )
         {
             if( deps[i].isAddedToClasspath() )
@@ -305,9 +317,7 @@ public class EclipseOSGiMojo extends EclipsePlugin
         if( "CUSTOM".equalsIgnoreCase( fixDependencies ) )
         {
             String id = dependency.getGroupId() + ':' + dependency.getArtifactId();
-            File baseDir = executedProject.getBasedir();
-
-            if( DirUtils.findPom( baseDir, id ) != null )
+            if( m_localProjectIds.contains( id ) )
             {
                 return dependency;
             }
@@ -325,6 +335,26 @@ public class EclipseOSGiMojo extends EclipsePlugin
         return testDependency;
     }
 
+    /**
+     * Search the local file-system for all classpath dependencies at once
+     * 
+     * @param deps resolved project dependencies
+     */
+    private void findLocalProjects( IdeDependency[] deps )
+    {
+        Set ids = new HashSet();
+        for( int i = 0; i < deps.length; i++ )
+        {
+            if( deps[i].isAddedToClasspath() )
+            {
+                ids.add( deps[i].getGroupId() + ':' + deps[i].getArtifactId() );
+            }
+        }
+
+        CacheUtils.beginSession( this );
+        m_localProjectIds = DirUtils.findPoms( executedProject.getBasedir(), ids ).keySet();
+    }
+
     private boolean isReactorDependency( IdeDependency dependency )
     {
         // check current reactor...
@@ -19,9 +19,11 @@ package org.ops4j.pax.construct.project;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.maven.artifact.Artifact;
@@ -37,10 +39,12 @@ import org.apache.maven.project.MavenProject;
 import org.apache.maven.project.MavenProjectBuilder;
 import org.apache.maven.project.ProjectBuildingException;
 import org.apache.maven.project.artifact.InvalidDependencyVersionException;
+import org.ops4j.pax.construct.util.CacheUtils;
 import org.ops4j.pax.construct.util.DirUtils;
 import org.ops4j.pax.construct.util.ExcludeSystemBundlesFilter;
 import org.ops4j.pax.construct.util.PomUtils;
 import org.ops4j.pax.construct.util.PomUtils.Pom;
+import org.ops4j.pax.construct.util.PomWorkspace;
 
 /**
  * Import an OSGi bundle as a project dependency and mark it for deployment
@@ -207,12 +211,29 @@ public class ImportBundleMojo extends AbstractMojo
      */
     private Set m_visitedIds;
 
+    /**
+     * Local projects (groupId:artifactId) found so far, null values mark ids known not to be local.
+     */
+    private Map m_localPoms;
+
+    /**
+     * Imported dependencies waiting to be added to the provisioning POM.
+     */
+    private List m_provisionDependencies;
+
+    /**
+     * Imported dependencies waiting to be added to the local bundle POM.
+     */
+    private List m_localDependencies;
+
     /**
      * {@inheritDoc}
      */
     public void execute()
         throws MojoExecutionException
     {
+        CacheUtils.beginSession( this );
+
         populateMissingFields();
 
         // Find host POMs which will receive the imported dependencies
@@ -229,15 +250,30 @@ public class ImportBundleMojo extends AbstractMojo
 
         m_candidateIds = new ArrayList();
         m_visitedIds = new HashSet();
+        m_localPoms = new HashMap();
+
+        m_provisionDependencies = new ArrayList();
+        m_localDependencies = new ArrayList();
 
         // kickstart the import
         excludeCandidates( exclusions );
         scheduleCandidate( rootId );
         importBundles( rootId );
 
-        // save any dependency updates
-        writeUpdatedPom( m_localBundlePom );
-        writeUpdatedPom( m_provisionPom );
+        // add every import before writing anything, so a conflict leaves both POMs untouched
+        PomWorkspace workspace = new PomWorkspace( 1 );
+        addImportedDependencies( m_localBundlePom, m_localDependencies, workspace );
+        addImportedDependencies( m_provisionPom, m_provisionDependencies, workspace );
+
+        try
+        {
+            // save any dependency updates
+            workspace.commit();
+        }
+        catch( IOException e )
+        {
+            getLog().warn( "Unable to update Maven POMs" );
+        }
     }
 
     /**
@@ -318,20 +354,19 @@ public class ImportBundleMojo extends AbstractMojo
     }
 
     /**
-     * @param pom the Maven POM to write
+     * @param pom the Maven POM to update, may be null
+     * @param dependencies imported dependencies to add
+     * @param workspace collects edited POMs
      */
-    private void writeUpdatedPom( Pom pom )
+    private void addImportedDependencies( Pom pom, List dependencies, PomWorkspace workspace )
     {
         if( pom != null )
         {
-            try
-            {
-                pom.write();
-            }
-            catch( IOException e )
-            {
-                getLog().warn( "Unable to update " + pom );
-            }
+            Pom editedPom = workspace.resolve( pom );
+
+            // merge all imported bundles in a single pass
+            editedPom.addDependencies( dependencies, overwrite );
+            workspace.add( editedPom );
         }
     }
 
@@ -382,7 +417,7 @@ public class ImportBundleMojo extends AbstractMojo
         /*
          * look to see if this is a local project (if so then set the POM location)
          */
-        Pom localPom = DirUtils.findPom( targetDirectory, pomGroupId + ':' + pomArtifactId );
+        Pom localPom = findLocalPom( pomGroupId + ':' + pomArtifactId );
         if( localPom != null )
         {
             project.setFile( localPom.getFile() );
@@ -414,6 +449,38 @@ public class ImportBundleMojo extends AbstractMojo
         return project;
     }
 
+    /**
+     * Look for a local project, searching for all the pending candidates at the same time
+     * 
+     * @param id groupId:artifactId
+     * @return the local project, null if there isn't one
+     */
+    private Pom findLocalPom( String id )
+    {
+        if( !m_localPoms.containsKey( id ) )
+        {
+            Set ids = new HashSet();
+            ids.add( id );
+
+            for( Iterator i = m_candidateIds.iterator(); i.hasNext(); )
+            {
+                String[] fields = ( (String) i.next() ).split( ":" );
+                ids.add( fields[0] + ':' + fields[1] );
+            }
+
+            ids.removeAll( m_localPoms.keySet() );
+
+            Map localPoms = DirUtils.findPoms( targetDirectory, ids );
+            for( Iterator i = ids.iterator(); i.hasNext(); )
+            {
+                Object key = i.next();
+                m_localPoms.put( key, localPoms.get( key ) );
+            }
+        }
+
+        return (Pom) m_localPoms.get( id );
+    }
+
     /**
      * Search direct dependencies for more import candidates
      * 
@@ -499,30 +566,41 @@ public class ImportBundleMojo extends AbstractMojo
      */
     private void importBundle( MavenProject project )
     {
-        Dependency dependency = new Dependency();
-
-        dependency.setGroupId( project.getGroupId() );
-        dependency.setArtifactId( project.getArtifactId() );
-        dependency.setVersion( project.getVersion() );
-        dependency.setOptional( !deploy );
-
         // only add non-local bundles to the provisioning POM
         if( m_provisionPom != null && project.getFile() == null )
         {
             getLog().info( "Importing " + project.getName() + " to " + m_provisionPom );
-            m_provisionPom.addDependency( dependency, overwrite );
+            m_provisionDependencies.add( createDependency( project ) );
         }
 
         if( m_localBundlePom != null )
         {
+            Dependency dependency = createDependency( project );
+
             // use provided scope when adding to bundle pom
             dependency.setScope( Artifact.SCOPE_PROVIDED );
 
             getLog().info( "Adding " + project.getName() + " as dependency to " + m_localBundlePom );
-            m_localBundlePom.addDependency( dependency, overwrite );
+            m_localDependencies.add( dependency );
         }
     }
 
+    /**
+     * @param project bundle project
+     * @return new dependency on the bundle
+     */
+    private Dependency createDependency( MavenProject project )
+    {
+        Dependency dependency = new Dependency();
+
+        dependency.setGroupId( project.getGroupId() );
+        dependency.setArtifactId( project.getArtifactId() );
+        dependency.setVersion( project.getVersion() );
+        dependency.setOptional( !deploy );
+
+        return dependency;
+    }
+
     /**
      * Explicitly exclude artifacts from the import process
      * 
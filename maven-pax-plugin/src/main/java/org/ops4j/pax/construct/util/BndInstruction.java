@@ -0,0 +1,577 @@
+package org.ops4j.pax.construct.util;
+
+/*
+ * Copyright 2007 Stuart McCulloch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parsed Bnd instruction, such as Embed-Dependency or Export-Package, made up of comma separated clauses. Clauses are
+ * indexed by name and keep their attributes and directives indexed by key, so single entries can be added, removed or
+ * updated without splitting the whole instruction again. Untouched clauses keep their original text.
+ */
+public final class BndInstruction
+{
+    /**
+     * Clauses in instruction order
+     */
+    private final Set m_clauses;
+
+    /**
+     * Map of clause name to the list of clauses with that name
+     */
+    private final Map m_index;
+
+    /**
+     * Current instruction text, null when it needs to be rebuilt from the clauses
+     */
+    private String m_text;
+
+    /**
+     * True once clauses have been added, removed or edited
+     */
+    private boolean m_modified;
+
+    /**
+     * @param text original instruction text
+     */
+    private BndInstruction( String text )
+    {
+        m_clauses = new LinkedHashSet();
+        m_index = new HashMap();
+        m_text = text;
+    }
+
+    /**
+     * @param instruction Bnd instruction, may be null
+     * @return parsed clause model
+     */
+    public static BndInstruction parse( String instruction )
+    {
+        if( null == instruction )
+        {
+            return new BndInstruction( "" );
+        }
+
+        BndInstruction model = new BndInstruction( instruction );
+
+        List clauses = split( instruction, ',' );
+        for( Iterator i = clauses.iterator(); i.hasNext(); )
+        {
+            Clause clause = Clause.parse( (String) i.next() );
+            if( null != clause )
+            {
+                model.attach( clause );
+            }
+        }
+
+        return model;
+    }
+
+    /**
+     * @param name clause name
+     * @return first clause with the given name, null if there is none
+     */
+    public Clause getClause( String name )
+    {
+        List named = (List) m_index.get( name );
+        if( null == named )
+        {
+            return null;
+        }
+        return (Clause) named.get( 0 );
+    }
+
+    /**
+     * @param name clause name
+     * @return clauses with the given name, in instruction order
+     */
+    public List getClauses( String name )
+    {
+        List named = (List) m_index.get( name );
+        if( null == named )
+        {
+            return Collections.EMPTY_LIST;
+        }
+        return Collections.unmodifiableList( named );
+    }
+
+    /**
+     * @return all clauses, in instruction order
+     */
+    public Iterator iterator()
+    {
+        return Collections.unmodifiableSet( m_clauses ).iterator();
+    }
+
+    /**
+     * @return number of clauses
+     */
+    public int size()
+    {
+        return m_clauses.size();
+    }
+
+    /**
+     * @return true if there are no clauses
+     */
+    public boolean isEmpty()
+    {
+        return m_clauses.isEmpty();
+    }
+
+    /**
+     * Append a new clause to the instruction
+     * 
+     * @param name clause name, such as a package or artifact
+     * @return the new clause, ready to be given attributes and directives
+     */
+    public Clause addClause( String name )
+    {
+        Clause clause = new Clause( name.trim(), null );
+        attach( clause );
+        changed();
+        return clause;
+    }
+
+    /**
+     * @param clause clause belonging to this instruction
+     * @return true if the clause was removed, otherwise false
+     */
+    public boolean removeClause( Clause clause )
+    {
+        if( clause.m_owner != this || !m_clauses.remove( clause ) )
+        {
+            return false;
+        }
+
+        List named = (List) m_index.get( clause.getName() );
+        for( int i = named.size() - 1; i >= 0; i-- )
+        {
+            if( named.get( i ) == clause )
+            {
+                named.remove( i );
+            }
+        }
+        if( named.isEmpty() )
+        {
+            m_index.remove( clause.getName() );
+        }
+
+        clause.m_owner = null;
+        changed();
+        return true;
+    }
+
+    /**
+     * @param name clause name
+     * @return number of clauses removed
+     */
+    public int removeClauses( String name )
+    {
+        List named = (List) m_index.remove( name );
+        if( null == named )
+        {
+            return 0;
+        }
+
+        for( Iterator i = named.iterator(); i.hasNext(); )
+        {
+            Clause clause = (Clause) i.next();
+            m_clauses.remove( clause );
+            clause.m_owner = null;
+        }
+
+        changed();
+        return named.size();
+    }
+
+    /**
+     * Add clauses from another instruction, each one replacing any existing clauses with the same name. Bnd uses the
+     * first matching clause, so a replacement takes over the first existing clause and only new names are appended.
+     * 
+     * @param instruction parsed clauses to add
+     */
+    public void mergeClauses( BndInstruction instruction )
+    {
+        for( Iterator i = instruction.m_clauses.iterator(); i.hasNext(); )
+        {
+            Clause clause = (Clause) i.next();
+
+            List named = (List) m_index.get( clause.m_name );
+            if( null == named )
+            {
+                Clause copy = new Clause( clause.m_name, clause.m_text );
+                copy.m_parameters.putAll( clause.m_parameters );
+                attach( copy );
+            }
+            else
+            {
+                // reuse the first clause so it keeps its position, then drop any later duplicates
+                Clause first = (Clause) named.get( 0 );
+                first.m_parameters.clear();
+                first.m_parameters.putAll( clause.m_parameters );
+                first.m_text = clause.m_text;
+
+                for( int n = named.size() - 1; n > 0; n-- )
+                {
+                    removeClause( (Clause) named.get( n ) );
+                }
+            }
+
+            changed();
+        }
+    }
+
+    /**
+     * @return true if clauses have been added, removed or edited since the instruction was parsed
+     */
+    boolean isModified()
+    {
+        return m_modified;
+    }
+
+    /**
+     * @param instruction another parsed instruction
+     * @return true if both have the same clauses in the same order, ignoring layout and parameter order
+     */
+    boolean sameClauses( BndInstruction instruction )
+    {
+        if( m_clauses.size() != instruction.m_clauses.size() )
+        {
+            return false;
+        }
+
+        for( Iterator i = m_clauses.iterator(), j = instruction.m_clauses.iterator(); i.hasNext(); )
+        {
+            Clause lhs = (Clause) i.next();
+            Clause rhs = (Clause) j.next();
+
+            if( !lhs.m_name.equals( rhs.m_name ) || !lhs.m_parameters.equals( rhs.m_parameters ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param clause new clause
+     */
+    private void attach( Clause clause )
+    {
+        clause.m_owner = this;
+        m_clauses.add( clause );
+
+        List named = (List) m_index.get( clause.getName() );
+        if( null == named )
+        {
+            named = new ArrayList( 1 );
+            m_index.put( clause.getName(), named );
+        }
+        named.add( clause );
+    }
+
+    /**
+     * Forget the cached instruction text
+     */
+    private void changed()
+    {
+        m_text = null;
+        m_modified = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString()
+    {
+        if( null == m_text )
+        {
+            StringBuffer buf = new StringBuffer();
+            for( Iterator i = m_clauses.iterator(); i.hasNext(); )
+            {
+                if( buf.length() > 0 )
+                {
+                    buf.append( ',' );
+                }
+                buf.append( i.next() );
+            }
+            m_text = buf.toString();
+        }
+
+        return m_text;
+    }
+
+    /**
+     * Split text at each separator that is outside of quotes
+     * 
+     * @param text text to split
+     * @param separator separator character
+     * @return trimmed sections of text, empty sections are dropped
+     */
+    static List split( String text, char separator )
+    {
+        List sections = new ArrayList();
+
+        char quote = 0;
+        int start = 0;
+        for( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if( 0 != quote )
+            {
+                if( c == quote )
+                {
+                    quote = 0;
+                }
+            }
+            else if( '\'' == c || '\"' == c )
+            {
+                quote = c;
+            }
+            else if( separator == c )
+            {
+                addSection( sections, text.substring( start, i ) );
+                start = i + 1;
+            }
+        }
+
+        addSection( sections, text.substring( start ) );
+
+        return sections;
+    }
+
+    /**
+     * @param sections list of sections
+     * @param section untrimmed section
+     */
+    private static void addSection( List sections, String section )
+    {
+        String trimmed = section.trim();
+        if( trimmed.length() > 0 )
+        {
+            sections.add( trimmed );
+        }
+    }
+
+    /**
+     * Single clause: one or more names (usually a single package or artifact) followed by attributes and directives
+     */
+    public static final class Clause
+    {
+        /**
+         * Clause name, multiple names are separated by semi-colons
+         */
+        private final String m_name;
+
+        /**
+         * Attributes and directives in clause order, directive keys end with a colon
+         */
+        private final Map m_parameters;
+
+        /**
+         * Instruction holding this clause, null once the clause is removed
+         */
+        private BndInstruction m_owner;
+
+        /**
+         * Current clause text, null when it needs to be rebuilt
+         */
+        private String m_text;
+
+        /**
+         * @param name clause name
+         * @param text original clause text
+         */
+        private Clause( String name, String text )
+        {
+            m_name = name;
+            m_parameters = new LinkedHashMap();
+            m_text = text;
+        }
+
+        /**
+         * @param text trimmed clause text
+         * @return parsed clause
+         */
+        static Clause parse( String text )
+        {
+            StringBuffer name = new StringBuffer();
+            Map parameters = new LinkedHashMap();
+
+            List sections = split( text, ';' );
+            for( Iterator i = sections.iterator(); i.hasNext(); )
+            {
+                String section = (String) i.next();
+
+                int assign = indexOfAssignment( section );
+                if( assign < 0 )
+                {
+                    if( name.length() > 0 )
+                    {
+                        name.append( ';' );
+                    }
+                    name.append( section );
+                }
+                else if( assign > 0 && ':' == section.charAt( assign - 1 ) )
+                {
+                    // directive, keep the colon as part of the key
+                    parameters.put( section.substring( 0, assign - 1 ).trim() + ':', section.substring( assign + 1 )
+                        .trim() );
+                }
+                else
+                {
+                    parameters.put( section.substring( 0, assign ).trim(), section.substring( assign + 1 ).trim() );
+                }
+            }
+
+            if( name.length() == 0 && parameters.isEmpty() )
+            {
+                return null;
+            }
+
+            Clause clause = new Clause( name.toString(), text );
+            clause.m_parameters.putAll( parameters );
+            return clause;
+        }
+
+        /**
+         * @param section clause section
+         * @return index of the first unquoted '=', otherwise -1
+         */
+        private static int indexOfAssignment( String section )
+        {
+            for( int i = 0; i < section.length(); i++ )
+            {
+                char c = section.charAt( i );
+                if( '=' == c )
+                {
+                    return i;
+                }
+                else if( '\'' == c || '\"' == c )
+                {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return clause name
+         */
+        public String getName()
+        {
+            return m_name;
+        }
+
+        /**
+         * @param key attribute key
+         * @return attribute value, null if not set
+         */
+        public String getAttribute( String key )
+        {
+            return (String) m_parameters.get( key );
+        }
+
+        /**
+         * @param key attribute key
+         * @param value attribute value, null to remove the attribute
+         */
+        public void setAttribute( String key, String value )
+        {
+            setParameter( key, value );
+        }
+
+        /**
+         * @param key directive key, without the trailing colon
+         * @return directive value, null if not set
+         */
+        public String getDirective( String key )
+        {
+            return (String) m_parameters.get( key + ':' );
+        }
+
+        /**
+         * @param key directive key, without the trailing colon
+         * @param value directive value, null to remove the directive
+         */
+        public void setDirective( String key, String value )
+        {
+            setParameter( key + ':', value );
+        }
+
+        /**
+         * @param key attribute key, or directive key with trailing colon
+         * @param value new value, null to remove
+         */
+        private void setParameter( String key, String value )
+        {
+            Object oldValue;
+            if( null == value )
+            {
+                oldValue = m_parameters.remove( key );
+            }
+            else
+            {
+                oldValue = m_parameters.put( key, value );
+            }
+
+            if( null == value ? null != oldValue : !value.equals( oldValue ) )
+            {
+                m_text = null;
+                if( null != m_owner )
+                {
+                    m_owner.changed();
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String toString()
+        {
+            if( null == m_text )
+            {
+                StringBuffer buf = new StringBuffer( m_name );
+                for( Iterator i = m_parameters.entrySet().iterator(); i.hasNext(); )
+                {
+                    Map.Entry entry = (Map.Entry) i.next();
+                    if( buf.length() > 0 )
+                    {
+                        buf.append( ';' );
+                    }
+                    buf.append( entry.getKey() );
+                    buf.append( '=' );
+                    buf.append( entry.getValue() );
+                }
+                m_text = buf.toString();
+            }
+
+            return m_text;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package org.ops4j.pax.construct.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -25,6 +26,11 @@ import java.util.Set;
  */
 public final class BndUtils
 {
+    /**
+     * Key of the session cache of Bnd files, which are keyed by canonical file
+     */
+    private static final String BND_CACHE = "pax.construct.bnds";
+
     /**
      * Hide constructor for utility class
      */
@@ -61,6 +67,15 @@ public final class BndUtils
          */
         boolean removeInstruction( String directive );
 
+        /**
+         * Edits to the returned clauses are applied to the instruction (removing every clause removes the instruction),
+         * while setting or removing the instruction discards them
+         * 
+         * @param directive a Bnd directive
+         * @return parsed clauses of the assigned instruction, empty if there is no such instruction
+         */
+        BndInstruction getClauses( String directive );
+
         /**
          * @return set of current directive names
          */
@@ -84,9 +99,10 @@ public final class BndUtils
         File getBasedir();
 
         /**
+         * @return true if the file was written, false if it already holds the same instructions
          * @throws IOException
          */
-        void write()
+        boolean write()
             throws IOException;
     }
 
@@ -123,7 +139,8 @@ public final class BndUtils
     }
 
     /**
-     * Factory method that provides an editor for an existing or new Bnd file
+     * Factory method that provides an editor for an existing or new Bnd file, the same editor is returned for the rest
+     * of the build session as long as it has no unsaved edits and the file is unchanged on disk
      * 
      * @param here a Bnd file, or a directory containing a file named 'osgi.bnd'
      * @return simple Bnd file editor
@@ -143,6 +160,137 @@ public final class BndUtils
             candidate = new File( here, "osgi.bnd" );
         }
 
-        return new RoundTripBndFile( candidate );
+        // protect against changes in working directory
+        File bndFile = DirUtils.resolveFile( candidate, true );
+
+        Bnd bnd = getCachedBnd( bndFile );
+        if( null == bnd )
+        {
+            RoundTripBndFile newBnd = new RoundTripBndFile( bndFile );
+            cacheBnd( newBnd );
+            bnd = newBnd;
+        }
+
+        return bnd;
+    }
+
+    /**
+     * @param bndFile canonical Bnd file
+     * @return the cached Bnd file, null if it's not cached, has unsaved edits, or the file has changed since it was
+     *         cached
+     */
+    private static Bnd getCachedBnd( File bndFile )
+    {
+        Map cache = CacheUtils.getSessionCache( BND_CACHE );
+        if( null == cache )
+        {
+            return null;
+        }
+
+        synchronized( cache )
+        {
+            CachedBnd entry = (CachedBnd) cache.get( bndFile );
+            if( null == entry )
+            {
+                return null;
+            }
+            else if( entry.isStale() )
+            {
+                // edits were never saved, or file was edited or removed behind our back
+                cache.remove( bndFile );
+                return null;
+            }
+
+            return entry.getBnd();
+        }
+    }
+
+    /**
+     * Record the current state of a Bnd file in the session cache, should be called after each read or write
+     * 
+     * @param bnd Bnd instructions
+     */
+    static void cacheBnd( RoundTripBndFile bnd )
+    {
+        Map cache = CacheUtils.getSessionCache( BND_CACHE );
+        if( null == cache )
+        {
+            return;
+        }
+
+        File bndFile = bnd.getFile();
+
+        synchronized( cache )
+        {
+            if( bndFile.exists() )
+            {
+                cache.put( bndFile, new CachedBnd( bnd ) );
+            }
+            else
+            {
+                cache.remove( bndFile );
+            }
+        }
+    }
+
+    /**
+     * Drop a Bnd file from the session cache, should be called when the file is deleted
+     * 
+     * @param bndFile Bnd instruction file
+     */
+    public static void evictBnd( File bndFile )
+    {
+        Map cache = CacheUtils.getSessionCache( BND_CACHE );
+        if( null == cache )
+        {
+            return;
+        }
+
+        synchronized( cache )
+        {
+            cache.remove( DirUtils.resolveFile( bndFile, true ) );
+        }
+    }
+
+    /**
+     * Cached Bnd instructions along with the file details at the time they were read or written
+     */
+    private static final class CachedBnd
+    {
+        /**
+         * Cached Bnd instructions
+         */
+        private final RoundTripBndFile m_bnd;
+
+        /**
+         * State of the file when cached
+         */
+        private final CacheUtils.FileStamp m_stamp;
+
+        /**
+         * @param bnd Bnd instructions
+         */
+        CachedBnd( RoundTripBndFile bnd )
+        {
+            m_bnd = bnd;
+            m_stamp = new CacheUtils.FileStamp( bnd.getFile() );
+        }
+
+        /**
+         * @return cached Bnd instructions
+         */
+        Bnd getBnd()
+        {
+            return m_bnd;
+        }
+
+        /**
+         * @return true if the cached instructions have unsaved edits or the underlying file may have changed since
+         *         they were cached
+         */
+        boolean isStale()
+        {
+            return m_bnd.isDirty() || m_stamp.isStale();
+        }
     }
 }
@@ -20,6 +20,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.codehaus.plexus.util.IOUtil;
@@ -29,6 +32,11 @@ import org.codehaus.plexus.util.IOUtil;
  */
 public final class CacheUtils
 {
+    /**
+     * Plugin context of the current build session, inherited by worker threads
+     */
+    private static final ThreadLocal SESSION = new InheritableThreadLocal();
+
     /**
      * Hide constructor for utility class
      */
@@ -91,4 +99,106 @@ public final class CacheUtils
             }
         }
     }
+
+    /**
+     * Keep session caches (such as parsed POMs and Bnd files) in the plugin context of the given mojo, so they are
+     * dropped along with the build session. Without a session nothing is cached and every read goes back to disk.
+     * 
+     * @param mojo currently executing mojo
+     */
+    public static void beginSession( AbstractMojo mojo )
+    {
+        Map context = mojo.getPluginContext();
+        if( null == context )
+        {
+            SESSION.set( null );
+        }
+        else
+        {
+            // don't keep the plugin context alive beyond the build
+            SESSION.set( new WeakReference( context ) );
+        }
+    }
+
+    /**
+     * @param key unique identifier
+     * @return cache stored in the plugin context of the current session, null if there is no session
+     */
+    static Map getSessionCache( String key )
+    {
+        WeakReference session = (WeakReference) SESSION.get();
+        if( null == session )
+        {
+            return null;
+        }
+
+        Map context = (Map) session.get();
+        if( null == context )
+        {
+            return null;
+        }
+
+        synchronized( context )
+        {
+            Map cache = (Map) context.get( key );
+            if( null == cache )
+            {
+                cache = new HashMap();
+                context.put( key, cache );
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Timestamp and size of a file when it was cached, used to tell if the cached copy may be out of date
+     */
+    static final class FileStamp
+    {
+        /**
+         * File timestamps are only trusted once they are older than this (in milliseconds), as some filesystems only
+         * keep timestamps to the nearest second or two
+         */
+        private static final long TIMESTAMP_RESOLUTION = 2000;
+
+        /**
+         * Cached file
+         */
+        private final File m_file;
+
+        /**
+         * File timestamp when cached
+         */
+        private final long m_lastModified;
+
+        /**
+         * File size when cached
+         */
+        private final long m_length;
+
+        /**
+         * True if the file could change again without changing its timestamp
+         */
+        private final boolean m_racy;
+
+        /**
+         * @param file cached file
+         */
+        FileStamp( File file )
+        {
+            m_file = file;
+            m_lastModified = file.lastModified();
+            m_length = file.length();
+
+            m_racy = System.currentTimeMillis() - m_lastModified < TIMESTAMP_RESOLUTION;
+        }
+
+        /**
+         * @return true if the file may have changed since it was stamped
+         */
+        boolean isStale()
+        {
+            return m_racy || m_file.lastModified() != m_lastModified || m_file.length() != m_length;
+        }
+    }
 }
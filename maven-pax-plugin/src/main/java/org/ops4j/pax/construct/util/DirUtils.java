@@ -23,10 +23,13 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -97,50 +100,132 @@ public final class DirUtils
             return null;
         }
 
-        // handle groupId:artifactId:other:stuff
-        String[] fields = pomId.split( ":" );
+        return (Pom) findPoms( baseDir, Collections.singleton( pomId ) ).get( pomId );
+    }
 
-        String groupId;
-        String artifactId;
+    /**
+     * Search the local project tree for Maven POMs with the given ids, using a single search of the tree
+     * 
+     * @param baseDir directory in the project tree
+     * @param pomIds collection of ids, each either artifactId or groupId:artifactId
+     * @return map of ids to matching Maven POMs, ids that weren't found are not mapped
+     */
+    public static Map findPoms( File baseDir, Collection pomIds )
+    {
+        Map poms = new HashMap();
 
-        if( fields.length > 1 )
+        Pom startPom;
+        try
         {
-            groupId = fields[0];
-            artifactId = fields[1];
+            startPom = PomUtils.readPom( baseDir );
         }
-        else
+        catch( IOException e )
         {
-            groupId = null;
-            artifactId = pomId;
+            return poms;
         }
 
-        for( Iterator i = new PomIterator( baseDir ); i.hasNext(); )
+        // use the persistent index rather than parsing the whole tree
+        PomIndex index = PomIndex.getIndex( startPom );
+
+        for( Iterator i = pomIds.iterator(); i.hasNext(); )
         {
-            Pom pom = (Pom) i.next();
-            if( sameProject( pom, groupId, artifactId ) )
+            String pomId = (String) i.next();
+            if( PomUtils.isEmpty( pomId ) )
             {
-                return pom;
+                continue;
+            }
+
+            // handle groupId:artifactId:other:stuff
+            String[] fields = pomId.split( ":" );
+
+            String groupId;
+            String artifactId;
+
+            if( fields.length > 1 )
+            {
+                groupId = fields[0];
+                artifactId = fields[1];
+            }
+            else
+            {
+                groupId = null;
+                artifactId = pomId;
+            }
+
+            Pom pom = index.findPom( startPom, groupId, artifactId );
+            if( null != pom )
+            {
+                poms.put( pomId, pom );
             }
         }
 
-        return null;
+        return poms;
     }
 
     /**
-     * @param pom Maven project model
-     * @param groupId optional project group id
-     * @param artifactId project artifact id or bundle symbolic name
-     * @return true if the project has matching ids, otherwise false
+     * Search the local project tree for Maven POMs that reference the given artifact in their dependencies,
+     * dependencyManagement or exclusions, without parsing the POMs that don't
+     * 
+     * @param baseDir directory in the project tree
+     * @param groupId referenced group id
+     * @param artifactId referenced artifact id
+     * @return map of referencing Maven POMs to the names of the referencing sections, in project tree order
      */
-    private static boolean sameProject( Pom pom, String groupId, String artifactId )
+    public static Map findReferences( File baseDir, String groupId, String artifactId )
     {
-        if( ( artifactId.equals( pom.getArtifactId() ) || artifactId.equals( pom.getBundleSymbolicName() ) )
-            && ( null == groupId || groupId.equals( pom.getGroupId() ) ) )
+        Pom startPom;
+        try
         {
-            return true;
+            startPom = PomUtils.readPom( baseDir );
+        }
+        catch( IOException e )
+        {
+            return Collections.EMPTY_MAP;
         }
 
-        return false;
+        return PomIndex.getIndex( startPom ).findReferences( groupId, artifactId );
+    }
+
+    /**
+     * Simple API to allow processing of every POM in a project tree
+     */
+    public interface PomVisitor
+    {
+        /**
+         * @param pom a Maven POM in the project tree, may be called concurrently for different POMs
+         */
+        void visit( Pom pom );
+    }
+
+    /**
+     * Visit every POM in the local project tree, searching the same POMs in the same way as {@link PomIterator} but
+     * reading sibling modules concurrently when more than one thread is requested
+     * 
+     * @param baseDir directory in the project tree
+     * @param visitor visitor to call for each POM
+     * @param parallelism number of threads, one visits POMs sequentially in the calling thread, zero or less means
+     *            one thread per available processor
+     * @throws IllegalStateException if the calling thread is interrupted before every POM has been visited
+     */
+    public static void forEachPom( File baseDir, PomVisitor visitor, int parallelism )
+    {
+        int threads = parallelism;
+        if( threads <= 0 )
+        {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        if( threads > 1 )
+        {
+            new ParallelPomWalker( visitor ).walk( baseDir, threads );
+        }
+        else
+        {
+            for( Iterator i = new PomIterator( baseDir ); i.hasNext(); )
+            {
+                visitor.visit( (Pom) i.next() );
+            }
+        }
     }
 
     /**
@@ -171,6 +256,9 @@ public final class DirUtils
         File commonDir = new File( pivot[1] );
         String descentPath = pivot[2];
 
+        // new module POMs are written together at the end
+        PomWorkspace workspace = new PomWorkspace( 1 );
+
         Pom parentPom = null;
         Pom childPom = null;
 
@@ -192,7 +280,7 @@ public final class DirUtils
             {
                 // no such pom, need to create new module pom
                 String module = descentPath.substring( i, j );
-                childPom = createMissingModulePom( parentPom, module, pomFile );
+                childPom = createMissingModulePom( parentPom, module, pomFile, workspace );
             }
             else
             {
@@ -207,6 +295,8 @@ public final class DirUtils
 
         } while( j >= 0 );
 
+        workspace.commit();
+
         // final pom in target directory
         return childPom;
     }
@@ -217,15 +307,16 @@ public final class DirUtils
      * @param parentPom parent project
      * @param module new project module
      * @param pomFile new project file
+     * @param workspace collects edited POMs
      * @return the new Maven POM
      * @throws IOException
      */
-    private static Pom createMissingModulePom( Pom parentPom, String module, File pomFile )
+    private static Pom createMissingModulePom( Pom parentPom, String module, File pomFile, PomWorkspace workspace )
         throws IOException
     {
         // link parent to new module pom
         parentPom.addModule( module, true );
-        parentPom.write();
+        workspace.add( parentPom );
 
         String groupId = PomUtils.getCompoundId( parentPom.getGroupId(), parentPom.getArtifactId() );
         if( groupId.equals( parentPom.getGroupId() ) )
@@ -236,7 +327,7 @@ public final class DirUtils
         // create missing module pom and link back to parent
         Pom childPom = PomUtils.createModulePom( pomFile, groupId, module );
         childPom.setParent( parentPom, null, true );
-        childPom.write();
+        workspace.add( childPom );
 
         return childPom;
     }
@@ -321,6 +412,32 @@ public final class DirUtils
         return relativePath;
     }
 
+    /**
+     * Replace a file with another file from the same directory, so readers never see a partially written file
+     * 
+     * @param source new file contents, removed afterwards
+     * @param target file to replace
+     * @throws IOException
+     */
+    public static void replaceFile( File source, File target )
+        throws IOException
+    {
+        if( !source.renameTo( target ) )
+        {
+            // fallback for Windows, which won't rename over an existing file...
+            if( target.exists() && !target.delete() )
+            {
+                source.delete();
+                throw new IOException( "Unable to replace " + target );
+            }
+            else if( !source.renameTo( target ) )
+            {
+                // leave the new contents behind for recovery
+                throw new IOException( "Unable to rename " + source + " to " + target );
+            }
+        }
+    }
+
     /**
      * Refactor path string, adding base directory to all entries
      * 
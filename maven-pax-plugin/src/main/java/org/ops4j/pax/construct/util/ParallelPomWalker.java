@@ -0,0 +1,249 @@
+package org.ops4j.pax.construct.util;
+
+/*
+ * Copyright 2007 Stuart McCulloch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+
+import org.ops4j.pax.construct.util.DirUtils.PomVisitor;
+import org.ops4j.pax.construct.util.PomUtils.Pom;
+
+/**
+ * Visit all POMs in a Maven project tree using a pool of worker threads, so sibling modules are parsed concurrently.
+ * Covers the same POMs as {@link PomIterator}: everything below the initial POM, then everything below each POM
+ * found by searching upwards, skipping any POM whose project id has already been seen.
+ */
+final class ParallelPomWalker
+{
+    /**
+     * Visitor to call for each POM
+     */
+    private final PomVisitor m_visitor;
+
+    /**
+     * Pending work, either POMs to visit or modules to read
+     */
+    private final LinkedList m_tasks;
+
+    /**
+     * Ids of all the POMs seen so far
+     */
+    private final Set m_visited;
+
+    /**
+     * Number of tasks currently being processed
+     */
+    private int m_active;
+
+    /**
+     * First problem reported by the visitor
+     */
+    private RuntimeException m_failure;
+
+    /**
+     * @param visitor visitor to call for each POM
+     */
+    ParallelPomWalker( PomVisitor visitor )
+    {
+        m_visitor = visitor;
+
+        m_tasks = new LinkedList();
+        m_visited = new HashSet();
+    }
+
+    /**
+     * @param here a directory somewhere in the project tree
+     * @param parallelism number of worker threads
+     * @throws IllegalStateException if the calling thread is interrupted before the walk is complete
+     */
+    void walk( File here, int parallelism )
+    {
+        Pom pom;
+        try
+        {
+            pom = PomUtils.readPom( here );
+        }
+        catch( IOException e )
+        {
+            return;
+        }
+
+        // local search first, then upwards search (ancestors are cheap and already needed to find the root)
+        m_tasks.add( pom );
+
+        Set seen = new HashSet();
+        seen.add( pom.getFile() );
+        for( Pom p = pom.getContainingPom(); null != p && seen.add( p.getFile() ); p = p.getContainingPom() )
+        {
+            m_tasks.add( p );
+        }
+
+        Thread[] workers = new Thread[parallelism];
+        for( int i = 0; i < workers.length; i++ )
+        {
+            workers[i] = new Thread( "pax-pom-walker-" + i )
+            {
+                public void run()
+                {
+                    work();
+                }
+            };
+            workers[i].setDaemon( true );
+            workers[i].start();
+        }
+
+        for( int i = 0; i < workers.length; i++ )
+        {
+            try
+            {
+                workers[i].join();
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+
+                // stop handing out work, but don't pretend the walk finished
+                synchronized( this )
+                {
+                    m_tasks.clear();
+                }
+                throw new IllegalStateException( "Interrupted while visiting project tree " + here );
+            }
+        }
+
+        if( null != m_failure )
+        {
+            throw m_failure;
+        }
+    }
+
+    /**
+     * Worker loop, finishes once there are no pending tasks and no tasks in progress
+     */
+    private void work()
+    {
+        Object task;
+        while( null != ( task = takeTask() ) )
+        {
+            try
+            {
+                process( task );
+            }
+            catch( RuntimeException e )
+            {
+                synchronized( this )
+                {
+                    if( null == m_failure )
+                    {
+                        m_failure = e;
+                    }
+                    m_tasks.clear();
+                }
+            }
+            finally
+            {
+                synchronized( this )
+                {
+                    m_active--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return next task, null when the walk is complete
+     */
+    private synchronized Object takeTask()
+    {
+        while( m_tasks.isEmpty() && m_active > 0 )
+        {
+            try
+            {
+                wait();
+            }
+            catch( InterruptedException e )
+            {
+                return null;
+            }
+        }
+
+        if( m_tasks.isEmpty() )
+        {
+            return null;
+        }
+
+        m_active++;
+        return m_tasks.removeFirst();
+    }
+
+    /**
+     * @param task either a POM to visit, or a pair of containing POM and module name
+     */
+    private void process( Object task )
+    {
+        Pom pom;
+        if( task instanceof Pom )
+        {
+            pom = (Pom) task;
+        }
+        else
+        {
+            // parse the module in this worker thread
+            Object[] module = (Object[]) task;
+            pom = ( (Pom) module[0] ).getModulePom( (String) module[1] );
+            if( null == pom )
+            {
+                return;
+            }
+        }
+
+        synchronized( this )
+        {
+            if( !m_visited.add( pom.getId() ) )
+            {
+                return;
+            }
+        }
+
+        m_visitor.visit( pom );
+
+        for( Iterator i = pom.getModuleNames().iterator(); i.hasNext(); )
+        {
+            addTask( new Object[]
+            {
+                pom, i.next()
+            } );
+        }
+    }
+
+    /**
+     * @param task new task
+     */
+    private synchronized void addTask( Object task )
+    {
+        if( null == m_failure )
+        {
+            m_tasks.add( task );
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,892 @@
+package org.ops4j.pax.construct.util;
+
+/*
+ * Copyright 2007 Stuart McCulloch
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.ops4j.pax.construct.util.PomUtils.Pom;
+
+/**
+ * Persistent index of a Maven project tree, mapping artifactIds and symbolic names to POM files, and referenced
+ * artifacts back to the POMs that reference them. The index is kept under the root project and is checked against the
+ * timestamps of the indexed POMs once per build session, so only those parts of the tree which have changed since the
+ * last command need to be parsed again. After that only POMs written during the session and POMs about to be returned
+ * from a search are checked.
+ */
+final class PomIndex
+{
+    /**
+     * Location of the index file, relative to the root project
+     */
+    private static final String INDEX_PATH = "target/.pax/tree-index";
+
+    /**
+     * Format of the index file, indices saved in any other format are rebuilt
+     */
+    private static final String INDEX_VERSION = "2";
+
+    /**
+     * Key of the session cache of loaded indices, which are keyed by root POM file
+     */
+    private static final String INDEX_CACHE = "pax.construct.indices";
+
+    /**
+     * Root POM file for this project tree
+     */
+    private final File m_rootFile;
+
+    /**
+     * Persistent index file
+     */
+    private final File m_indexFile;
+
+    /**
+     * Indexed POMs in depth-first order, keyed by POM file
+     */
+    private Map m_entries;
+
+    /**
+     * Indexed POMs grouped by artifactId and symbolic name
+     */
+    private Map m_names;
+
+    /**
+     * Indexed POMs grouped by the groupId:artifactId keys they reference
+     */
+    private Map m_references;
+
+    /**
+     * POM files changed since the index was last checked
+     */
+    private Set m_changedFiles;
+
+    /**
+     * True once the whole tree has been checked against the files on disk
+     */
+    private boolean m_refreshed;
+
+    /**
+     * @param rootFile root POM file
+     */
+    private PomIndex( File rootFile )
+    {
+        m_rootFile = rootFile;
+        m_indexFile = new File( rootFile.getParentFile(), INDEX_PATH );
+
+        m_entries = new LinkedHashMap();
+        m_names = new HashMap();
+        m_references = new HashMap();
+
+        m_changedFiles = new HashSet();
+    }
+
+    /**
+     * Find the index for the project tree containing the given POM, refreshed against the current files on disk
+     * 
+     * @param pom a Maven POM somewhere in the project tree
+     * @return up-to-date index for the complete tree
+     */
+    static PomIndex getIndex( Pom pom )
+    {
+        File rootFile = findRootPom( pom ).getFile();
+
+        Map cache = CacheUtils.getSessionCache( INDEX_CACHE );
+        if( null == cache )
+        {
+            // no session, so this index won't be used again
+            cache = new HashMap();
+        }
+
+        PomIndex index;
+        synchronized( cache )
+        {
+            index = (PomIndex) cache.get( rootFile );
+            if( null == index )
+            {
+                index = new PomIndex( rootFile );
+                index.load();
+
+                cache.put( rootFile, index );
+            }
+        }
+
+        index.update();
+
+        return index;
+    }
+
+    /**
+     * Tell the indices of the current session that a POM has been written or deleted
+     * 
+     * @param pomFile canonical POM file
+     */
+    static void changed( File pomFile )
+    {
+        Map cache = CacheUtils.getSessionCache( INDEX_CACHE );
+        if( null == cache )
+        {
+            return;
+        }
+
+        PomIndex[] indices;
+        synchronized( cache )
+        {
+            indices = (PomIndex[]) cache.values().toArray( new PomIndex[cache.size()] );
+        }
+
+        for( int i = 0; i < indices.length; i++ )
+        {
+            indices[i].addChangedFile( pomFile );
+        }
+    }
+
+    /**
+     * @param pomFile canonical POM file
+     */
+    private synchronized void addChangedFile( File pomFile )
+    {
+        m_changedFiles.add( pomFile );
+    }
+
+    /**
+     * @param pom a Maven POM somewhere in the project tree
+     * @return the top-most POM which physically contains the given POM
+     */
+    private static Pom findRootPom( Pom pom )
+    {
+        Set seen = new HashSet();
+
+        Pom rootPom = pom;
+        seen.add( rootPom.getFile() );
+
+        // climb up the tree, watching out for odd cyclic layouts
+        for( Pom p = pom.getContainingPom(); null != p && seen.add( p.getFile() ); p = p.getContainingPom() )
+        {
+            rootPom = p;
+        }
+
+        return rootPom;
+    }
+
+    /**
+     * Search the index using the same order as a {@link PomIterator} started from the given POM
+     * 
+     * @param startPom POM where the search begins
+     * @param groupId optional project group id
+     * @param name project artifact id or bundle symbolic name
+     * @return the first matching POM, null if not found
+     */
+    synchronized Pom findPom( Pom startPom, String groupId, String name )
+    {
+        List candidates = findCandidates( groupId, name );
+        if( updateEntries( candidates ) )
+        {
+            // candidates changed behind our back
+            candidates = findCandidates( groupId, name );
+        }
+
+        if( candidates.isEmpty() )
+        {
+            return null;
+        }
+
+        Entry match = (Entry) candidates.get( 0 );
+        if( candidates.size() > 1 )
+        {
+            match = selectNearest( startPom.getFile(), candidates );
+        }
+
+        try
+        {
+            return PomUtils.readPom( match.m_file );
+        }
+        catch( IOException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @param groupId optional project group id
+     * @param name project artifact id or bundle symbolic name
+     * @return matching entries, in depth-first order
+     */
+    private List findCandidates( String groupId, String name )
+    {
+        List candidates = new ArrayList();
+
+        List entries = (List) m_names.get( name );
+        if( null != entries )
+        {
+            for( Iterator i = entries.iterator(); i.hasNext(); )
+            {
+                Entry entry = (Entry) i.next();
+                if( null == groupId || groupId.equals( entry.m_groupId ) )
+                {
+                    candidates.add( entry );
+                }
+            }
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Find all POMs in the tree that reference the given artifact
+     * 
+     * @param groupId referenced group id
+     * @param artifactId referenced artifact id
+     * @return map of referencing POM to the names of the referencing sections, in depth-first order
+     */
+    synchronized Map findReferences( String groupId, String artifactId )
+    {
+        Map poms = new LinkedHashMap();
+
+        String key = groupId + ':' + artifactId;
+
+        List entries = (List) m_references.get( key );
+        if( null != entries && updateEntries( entries ) )
+        {
+            // referencing POMs changed behind our back
+            entries = (List) m_references.get( key );
+        }
+
+        if( null == entries )
+        {
+            return poms;
+        }
+
+        for( Iterator i = entries.iterator(); i.hasNext(); )
+        {
+            Entry entry = (Entry) i.next();
+
+            List sections = new ArrayList();
+            for( Iterator j = entry.m_references.entrySet().iterator(); j.hasNext(); )
+            {
+                Map.Entry section = (Map.Entry) j.next();
+                if( ( (Set) section.getValue() ).contains( key ) )
+                {
+                    sections.add( section.getKey() );
+                }
+            }
+
+            try
+            {
+                poms.put( PomUtils.readPom( entry.m_file ), sections );
+            }
+            catch( IOException e )
+            {
+                continue; // file has since disappeared
+            }
+        }
+
+        return poms;
+    }
+
+    /**
+     * The iterator searches below the start POM before backtracking to each enclosing POM in turn, so prefer the
+     * candidate with the nearest common ancestor, then the one seen first in depth-first order
+     * 
+     * @param startFile POM file where the search begins
+     * @param candidates matching entries, in depth-first order
+     * @return the entry the iterator would have found first
+     */
+    private Entry selectNearest( File startFile, List candidates )
+    {
+        Map ancestors = new HashMap();
+
+        int depth = 0;
+        for( File f = startFile; null != f && !ancestors.containsKey( f ); f = getParentFile( f ) )
+        {
+            ancestors.put( f, new Integer( depth++ ) );
+        }
+
+        Entry nearest = null;
+        int nearestDepth = Integer.MAX_VALUE;
+
+        for( Iterator i = candidates.iterator(); i.hasNext(); )
+        {
+            Entry entry = (Entry) i.next();
+
+            Set seen = new HashSet();
+            for( File f = entry.m_file; null != f && seen.add( f ); f = getParentFile( f ) )
+            {
+                Integer d = (Integer) ancestors.get( f );
+                if( null != d )
+                {
+                    // strictly less, so ties go to the earlier candidate
+                    if( d.intValue() < nearestDepth )
+                    {
+                        nearest = entry;
+                        nearestDepth = d.intValue();
+                    }
+                    break;
+                }
+            }
+        }
+
+        if( null == nearest )
+        {
+            return (Entry) candidates.get( 0 );
+        }
+
+        return nearest;
+    }
+
+    /**
+     * @param pomFile indexed POM file
+     * @return the containing POM file, null if it has none
+     */
+    private File getParentFile( File pomFile )
+    {
+        Entry entry = (Entry) m_entries.get( pomFile );
+        if( null == entry )
+        {
+            return null;
+        }
+
+        return entry.m_parent;
+    }
+
+    /**
+     * Check the whole tree the first time the index is used in a session, after that only re-read POMs known to have
+     * changed since the last check
+     */
+    private synchronized void update()
+    {
+        if( !m_refreshed )
+        {
+            refresh();
+        }
+        else if( !m_changedFiles.isEmpty() )
+        {
+            updateEntries( Collections.EMPTY_LIST );
+        }
+    }
+
+    /**
+     * Re-read the given entries if they have changed on disk, along with any POMs known to have changed
+     * 
+     * @param entries indexed POMs about to be used
+     * @return true if the index was updated, otherwise false
+     */
+    private boolean updateEntries( List entries )
+    {
+        for( Iterator i = entries.iterator(); i.hasNext(); )
+        {
+            Entry entry = (Entry) i.next();
+            if( entry.isStale( entry.m_parent ) )
+            {
+                m_changedFiles.add( entry.m_file );
+            }
+        }
+
+        if( m_changedFiles.isEmpty() )
+        {
+            return false;
+        }
+
+        for( Iterator i = m_changedFiles.iterator(); i.hasNext(); )
+        {
+            File pomFile = (File) i.next();
+
+            Entry oldEntry = (Entry) m_entries.get( pomFile );
+            if( null == oldEntry )
+            {
+                // new or previously broken POM, so the layout of the tree may have changed
+                refresh();
+                return true;
+            }
+
+            Entry newEntry = Entry.read( pomFile, oldEntry.m_parent );
+            if( null == newEntry || !newEntry.m_modules.equals( oldEntry.m_modules ) )
+            {
+                refresh();
+                return true;
+            }
+
+            // same key, so the depth-first order is kept
+            m_entries.put( pomFile, newEntry );
+        }
+
+        m_changedFiles.clear();
+
+        indexNames();
+        save();
+
+        return true;
+    }
+
+    /**
+     * Walk the project tree, re-reading any POMs that have changed since they were last indexed
+     */
+    private void refresh()
+    {
+        Map oldEntries = m_entries;
+        Map newEntries = new LinkedHashMap();
+
+        boolean changed = false;
+
+        LinkedList pending = new LinkedList();
+        pending.add( new File[]
+        {
+            m_rootFile, null
+        } );
+
+        while( !pending.isEmpty() )
+        {
+            File[] next = (File[]) pending.removeFirst();
+
+            File pomFile = next[0];
+            File parentFile = next[1];
+
+            if( newEntries.containsKey( pomFile ) )
+            {
+                continue; // already visited
+            }
+
+            Entry entry = (Entry) oldEntries.get( pomFile );
+            if( null == entry || entry.isStale( parentFile ) || m_changedFiles.contains( pomFile ) )
+            {
+                entry = Entry.read( pomFile, parentFile );
+                if( null == entry )
+                {
+                    continue; // missing or broken module, only a change if it was indexed before
+                }
+
+                changed = true;
+            }
+
+            newEntries.put( pomFile, entry );
+
+            // add modules in reverse, so the first module is visited next
+            File baseDir = pomFile.getParentFile();
+            for( int i = entry.m_modules.size() - 1; i >= 0; i-- )
+            {
+                File moduleFile = getModuleFile( baseDir, (String) entry.m_modules.get( i ) );
+                pending.addFirst( new File[]
+                {
+                    moduleFile, pomFile
+                } );
+            }
+        }
+
+        m_changedFiles.clear();
+        m_refreshed = true;
+
+        if( changed || newEntries.size() != oldEntries.size() )
+        {
+            m_entries = newEntries;
+            indexNames();
+            save();
+        }
+    }
+
+    /**
+     * @param baseDir directory of the containing POM
+     * @param module module name
+     * @return canonical location of the module POM
+     */
+    private static File getModuleFile( File baseDir, String module )
+    {
+        File candidate = new File( baseDir, module );
+        if( candidate.isDirectory() )
+        {
+            candidate = new File( candidate, "pom.xml" );
+        }
+
+        return DirUtils.resolveFile( candidate, true );
+    }
+
+    /**
+     * Group indexed POMs by artifactId, symbolic name and referenced artifacts, keeping the depth-first order
+     */
+    private void indexNames()
+    {
+        m_names = new HashMap();
+        m_references = new HashMap();
+
+        for( Iterator i = m_entries.values().iterator(); i.hasNext(); )
+        {
+            Entry entry = (Entry) i.next();
+
+            addName( m_names, entry.m_artifactId, entry );
+            if( null != entry.m_symbolicName && !entry.m_symbolicName.equals( entry.m_artifactId ) )
+            {
+                addName( m_names, entry.m_symbolicName, entry );
+            }
+
+            Set keys = new HashSet();
+            for( Iterator j = entry.m_references.values().iterator(); j.hasNext(); )
+            {
+                keys.addAll( (Set) j.next() );
+            }
+            for( Iterator j = keys.iterator(); j.hasNext(); )
+            {
+                addName( m_references, (String) j.next(), entry );
+            }
+        }
+    }
+
+    /**
+     * @param names map of name to indexed POMs
+     * @param name artifactId, symbolic name or referenced key
+     * @param entry indexed POM
+     */
+    private static void addName( Map names, String name, Entry entry )
+    {
+        if( null == name )
+        {
+            return;
+        }
+
+        List entries = (List) names.get( name );
+        if( null == entries )
+        {
+            entries = new ArrayList();
+            names.put( name, entries );
+        }
+
+        entries.add( entry );
+    }
+
+    /**
+     * Load the index saved by a previous command, if any
+     */
+    private void load()
+    {
+        if( !m_indexFile.exists() )
+        {
+            return;
+        }
+
+        Properties index = new Properties();
+
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream( m_indexFile );
+            index.load( in );
+        }
+        catch( IOException e )
+        {
+            return; // will be rebuilt on refresh
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+
+        if( !INDEX_VERSION.equals( index.getProperty( "index.version" ) ) )
+        {
+            return; // old format, will be rebuilt on refresh
+        }
+
+        for( int n = 0; index.containsKey( "pom." + n + ".file" ); n++ )
+        {
+            Entry entry = Entry.load( index, "pom." + n + '.' );
+            m_entries.put( entry.m_file, entry );
+        }
+
+        indexNames();
+    }
+
+    /**
+     * Save the index for the next command, failure is not fatal as the index can always be rebuilt
+     */
+    private void save()
+    {
+        Properties index = new Properties();
+        index.setProperty( "index.version", INDEX_VERSION );
+
+        int n = 0;
+        for( Iterator i = m_entries.values().iterator(); i.hasNext(); )
+        {
+            ( (Entry) i.next() ).store( index, "pom." + ( n++ ) + '.' );
+        }
+
+        OutputStream out = null;
+        try
+        {
+            m_indexFile.getParentFile().mkdirs();
+            out = new FileOutputStream( m_indexFile );
+            index.store( out, "Pax-Construct project tree index" );
+        }
+        catch( IOException e )
+        {
+            m_indexFile.delete();
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+    }
+
+    /**
+     * Indexed details for a single POM
+     */
+    private static final class Entry
+    {
+        /**
+         * Canonical POM file
+         */
+        private File m_file;
+
+        /**
+         * Containing POM file, null for the root
+         */
+        private File m_parent;
+
+        /**
+         * File timestamp when indexed
+         */
+        private long m_lastModified;
+
+        /**
+         * File size when indexed
+         */
+        private long m_length;
+
+        /**
+         * Project group id
+         */
+        private String m_groupId;
+
+        /**
+         * Project artifact id
+         */
+        private String m_artifactId;
+
+        /**
+         * Bundle symbolic name, may be null
+         */
+        private String m_symbolicName;
+
+        /**
+         * Module names
+         */
+        private List m_modules;
+
+        /**
+         * Referenced groupId:artifactId keys, grouped by section
+         */
+        private Map m_references;
+
+        /**
+         * @param pomFile canonical POM file
+         * @param parentFile containing POM file
+         * @return new entry, null if the POM couldn't be read
+         */
+        static Entry read( File pomFile, File parentFile )
+        {
+            XppPom pom;
+            Map references;
+            try
+            {
+                // always index what is on disk, never unsaved edits from the session cache
+                pom = new XppPom( pomFile );
+                references = pom.getReferences();
+            }
+            catch( IOException e )
+            {
+                return null;
+            }
+            catch( IllegalStateException e )
+            {
+                return null;
+            }
+
+            Entry entry = new Entry();
+
+            entry.m_file = pomFile;
+            entry.m_parent = parentFile;
+            entry.m_lastModified = pomFile.lastModified();
+            entry.m_length = pomFile.length();
+            entry.m_groupId = pom.getGroupId();
+            entry.m_artifactId = pom.getArtifactId();
+            entry.m_symbolicName = pom.getBundleSymbolicName();
+            entry.m_modules = pom.getModuleNames();
+
+            entry.m_references = new LinkedHashMap();
+            for( int i = 0; i < XppPom.REFERENCE_SECTIONS.length; i++ )
+            {
+                String section = XppPom.REFERENCE_SECTIONS[i];
+                entry.m_references.put( section, new HashSet( (Set) references.get( section ) ) );
+            }
+
+            return entry;
+        }
+
+        /**
+         * @param index persistent index
+         * @param prefix property prefix for this entry
+         * @return saved entry
+         */
+        static Entry load( Properties index, String prefix )
+        {
+            Entry entry = new Entry();
+
+            entry.m_file = new File( index.getProperty( prefix + "file" ) );
+
+            String parent = index.getProperty( prefix + "parent" );
+            if( null != parent )
+            {
+                entry.m_parent = new File( parent );
+            }
+
+            entry.m_lastModified = parseLong( index.getProperty( prefix + "lastModified" ) );
+            entry.m_length = parseLong( index.getProperty( prefix + "length" ) );
+            entry.m_groupId = index.getProperty( prefix + "groupId" );
+            entry.m_artifactId = index.getProperty( prefix + "artifactId" );
+            entry.m_symbolicName = index.getProperty( prefix + "symbolicName" );
+
+            entry.m_modules = new ArrayList( loadList( index, prefix + "modules" ) );
+
+            entry.m_references = new LinkedHashMap();
+            for( int i = 0; i < XppPom.REFERENCE_SECTIONS.length; i++ )
+            {
+                String section = XppPom.REFERENCE_SECTIONS[i];
+                entry.m_references.put( section, new HashSet( loadList( index, prefix + section ) ) );
+            }
+
+            return entry;
+        }
+
+        /**
+         * @param index persistent index
+         * @param prefix property prefix for this entry
+         */
+        void store( Properties index, String prefix )
+        {
+            index.setProperty( prefix + "file", m_file.getPath() );
+            if( null != m_parent )
+            {
+                index.setProperty( prefix + "parent", m_parent.getPath() );
+            }
+
+            index.setProperty( prefix + "lastModified", Long.toString( m_lastModified ) );
+            index.setProperty( prefix + "length", Long.toString( m_length ) );
+
+            storeValue( index, prefix + "groupId", m_groupId );
+            storeValue( index, prefix + "artifactId", m_artifactId );
+            storeValue( index, prefix + "symbolicName", m_symbolicName );
+
+            storeList( index, prefix + "modules", m_modules );
+            for( Iterator i = m_references.entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry section = (Map.Entry) i.next();
+                storeList( index, prefix + section.getKey(), (Collection) section.getValue() );
+            }
+        }
+
+        /**
+         * @param parentFile containing POM file for this visit
+         * @return true if the POM has changed or moved since it was indexed, otherwise false
+         */
+        boolean isStale( File parentFile )
+        {
+            if( null == parentFile ? null != m_parent : !parentFile.equals( m_parent ) )
+            {
+                return true;
+            }
+
+            return m_file.lastModified() != m_lastModified || m_file.length() != m_length;
+        }
+
+        /**
+         * @param index persistent index
+         * @param key property key
+         * @param value property value, may be null
+         */
+        private static void storeValue( Properties index, String key, String value )
+        {
+            if( null != value )
+            {
+                index.setProperty( key, value );
+            }
+        }
+
+        /**
+         * @param index persistent index
+         * @param key property key
+         * @return saved list of names, empty if missing
+         */
+        private static List loadList( Properties index, String key )
+        {
+            String names = index.getProperty( key );
+            if( PomUtils.isNotEmpty( names ) )
+            {
+                return Arrays.asList( names.split( "," ) );
+            }
+            return Collections.EMPTY_LIST;
+        }
+
+        /**
+         * @param index persistent index
+         * @param key property key
+         * @param names names to save
+         */
+        private static void storeList( Properties index, String key, Collection names )
+        {
+            StringBuffer buf = new StringBuffer();
+            for( Iterator i = names.iterator(); i.hasNext(); )
+            {
+                if( buf.length() > 0 )
+                {
+                    buf.append( ',' );
+                }
+                buf.append( i.next() );
+            }
+            index.setProperty( key, buf.toString() );
+        }
+
+        /**
+         * @param value saved number
+         * @return parsed number, -1 if it's missing or corrupt
+         */
+        private static long parseLong( String value )
+        {
+            try
+            {
+                return Long.parseLong( value );
+            }
+            catch( NumberFormatException e )
+            {
+                return -1;
+            }
+        }
+    }
+}
@@ -42,7 +42,7 @@ public class PomIterator
     private Pom m_nextPom;
 
     /**
-     * All the POMs seen so far
+     * Ids of all the POMs seen so far
      */
     private Set m_visited;
 
@@ -108,7 +108,7 @@ public class PomIterator
         // iterative search for next POM...
         while( null == m_nextPom && null != m_pom )
         {
-            if( m_visited.add( m_pom ) )
+            if( m_visited.add( m_pom.getId() ) )
             {
                 // cache result
                 m_nextPom = m_pom;
@@ -130,7 +130,7 @@ public class PomIterator
         for( Iterator i = m_pom.getModuleNames().iterator(); i.hasNext(); )
         {
             Pom subPom = m_pom.getModulePom( (String) i.next() );
-            if( subPom != null && !m_visited.contains( subPom ) )
+            if( subPom != null && !m_visited.contains( subPom.getId() ) )
             {
                 // visit module
                 return subPom;
@@ -18,9 +18,11 @@ package org.ops4j.pax.construct.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
@@ -47,6 +49,11 @@ import org.apache.maven.project.MavenProject;
  */
 public final class PomUtils
 {
+    /**
+     * Key of the session cache of parsed Maven POMs, which are keyed by canonical file
+     */
+    private static final String POM_CACHE = "pax.construct.poms";
+
     /**
      * Hide constructor for utility class
      */
@@ -190,6 +197,16 @@ public final class PomUtils
         void addDependency( Dependency dependency, boolean overwrite )
             throws ExistingElementException;
 
+        /**
+         * Add several dependencies in one go, which is much quicker than adding them one at a time
+         * 
+         * @param dependencies collection of project dependencies
+         * @param overwrite overwrite elements if true, otherwise throw {@link ExistingElementException}
+         * @throws ExistingElementException
+         */
+        void addDependencies( Collection dependencies, boolean overwrite )
+            throws ExistingElementException;
+
         /**
          * @param dependency project dependency
          * @param newGroupId updated dependency group id
@@ -248,6 +265,18 @@ public final class PomUtils
          */
         void mergeSection( Pom pom, String fromSection, String toSection, boolean append );
 
+        /**
+         * Move a section of XML from another Maven project POM, merging it in the same way as
+         * {@link #mergeSection(Pom, String, String, boolean)} but without copying; the section is removed from the other
+         * project, which is handy when the other project is only a source of settings
+         * 
+         * @param pom another Maven project
+         * @param fromSection path to XML section to move
+         * @param toSection path to XML section to merge into
+         * @param append when true, append instead of merging
+         */
+        void moveSection( Pom pom, String fromSection, String toSection, boolean append );
+
         /**
          * Overlay POM template with detail from another Maven project POM
          * 
@@ -256,9 +285,12 @@ public final class PomUtils
         void overlayDetails( Pom pom );
 
         /**
+         * Write the project to disk, unless the file already has the same contents
+         * 
+         * @return true if the file was written, otherwise false
          * @throws IOException
          */
-        void write()
+        boolean write()
             throws IOException;
     }
 
@@ -295,7 +327,8 @@ public final class PomUtils
     }
 
     /**
-     * Factory method that provides an editor for an existing Maven project file
+     * Factory method that provides an editor for an existing Maven project file, the same editor is returned for the
+     * rest of the build session as long as it has no unsaved edits and the file is unchanged on disk
      * 
      * @param here a Maven POM, or a directory containing a file named 'pom.xml'
      * @return simple Maven project editor
@@ -315,7 +348,139 @@ public final class PomUtils
             candidate = new File( here, "pom.xml" );
         }
 
-        return new XppPom( candidate );
+        // protect against changes in working directory
+        File pomFile = DirUtils.resolveFile( candidate, true );
+
+        Pom pom = getCachedPom( pomFile );
+        if( null == pom )
+        {
+            XppPom newPom = new XppPom( pomFile );
+            cachePom( newPom );
+            pom = newPom;
+        }
+
+        return pom;
+    }
+
+    /**
+     * @param pomFile canonical Maven POM file
+     * @return the cached POM, null if it's not cached, has unsaved edits, or the file has changed since it was cached
+     */
+    private static Pom getCachedPom( File pomFile )
+    {
+        Map cache = CacheUtils.getSessionCache( POM_CACHE );
+        if( null == cache )
+        {
+            return null;
+        }
+
+        synchronized( cache )
+        {
+            CachedPom entry = (CachedPom) cache.get( pomFile );
+            if( null == entry )
+            {
+                return null;
+            }
+            else if( entry.isStale() )
+            {
+                // edits were never saved, or file was edited or removed behind our back
+                cache.remove( pomFile );
+                return null;
+            }
+
+            return entry.getPom();
+        }
+    }
+
+    /**
+     * Record the current state of a POM in the session cache, should be called after each read or write
+     * 
+     * @param pom Maven project model
+     */
+    static void cachePom( XppPom pom )
+    {
+        Map cache = CacheUtils.getSessionCache( POM_CACHE );
+        if( null == cache )
+        {
+            return;
+        }
+
+        File pomFile = pom.getFile();
+
+        synchronized( cache )
+        {
+            if( pomFile.exists() )
+            {
+                cache.put( pomFile, new CachedPom( pom ) );
+            }
+            else
+            {
+                cache.remove( pomFile );
+            }
+        }
+    }
+
+    /**
+     * Drop a POM from the session cache, should be called when the POM is deleted or a write fails
+     * 
+     * @param pomFile Maven POM file
+     */
+    public static void evictPom( File pomFile )
+    {
+        File canonicalFile = DirUtils.resolveFile( pomFile, true );
+        PomIndex.changed( canonicalFile );
+
+        Map cache = CacheUtils.getSessionCache( POM_CACHE );
+        if( null == cache )
+        {
+            return;
+        }
+
+        synchronized( cache )
+        {
+            cache.remove( canonicalFile );
+        }
+    }
+
+    /**
+     * Cached POM along with the file details at the time it was read or written
+     */
+    private static final class CachedPom
+    {
+        /**
+         * Cached Maven project model
+         */
+        private final XppPom m_pom;
+
+        /**
+         * State of the file when cached
+         */
+        private final CacheUtils.FileStamp m_stamp;
+
+        /**
+         * @param pom Maven project model
+         */
+        CachedPom( XppPom pom )
+        {
+            m_pom = pom;
+            m_stamp = new CacheUtils.FileStamp( pom.getFile() );
+        }
+
+        /**
+         * @return cached Maven project model
+         */
+        Pom getPom()
+        {
+            return m_pom;
+        }
+
+        /**
+         * @return true if the cached POM has unsaved edits or the underlying file may have changed since it was cached
+         */
+        boolean isStale()
+        {
+            return m_pom.isDirty() || m_stamp.isStale();
+        }
     }
 
     /**
@@ -0,0 +1,373 @@
+package org.ops4j.pax.construct.util;
+
+/*
+ * Copyright 2007 Stuart McCulloch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.ops4j.pax.construct.util.PomUtils.Pom;
+
+/**
+ * Unit of work for refactorings that edit many POMs. Edited POMs are added as they change and written together on
+ * commit: each POM is written once no matter how often it was added, and every POM is serialized to a temporary file
+ * before any POM is replaced. Replacing several files can't be done atomically, so the original POMs are copied first
+ * and put back if a later replacement fails. Restoring is best effort: a copy that can't be put back is left next to
+ * its POM with a '.bak' extension.
+ */
+public final class PomWorkspace
+{
+    /**
+     * Edited POMs, keyed by file so each POM is only written once
+     */
+    private final Map m_dirtyPoms;
+
+    /**
+     * Number of threads used to serialize POMs
+     */
+    private final int m_parallelism;
+
+    /**
+     * @param parallelism number of threads used to write POMs, zero or less means one thread per available processor
+     */
+    public PomWorkspace( int parallelism )
+    {
+        m_dirtyPoms = new LinkedHashMap();
+
+        if( parallelism <= 0 )
+        {
+            m_parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        else
+        {
+            m_parallelism = parallelism;
+        }
+    }
+
+    /**
+     * Mark a POM as edited, can be called concurrently from different threads
+     * 
+     * @param pom an edited Maven POM
+     */
+    public synchronized void add( Pom pom )
+    {
+        Pom existing = (Pom) m_dirtyPoms.get( pom.getFile() );
+        if( null != existing && existing != pom )
+        {
+            // one set of edits would be silently lost
+            throw new IllegalStateException( "Maven POM edited by two different editors: " + pom.getFile() );
+        }
+
+        m_dirtyPoms.put( pom.getFile(), pom );
+    }
+
+    /**
+     * Find the editor for a POM that may already have been edited as part of this workspace, as the session cache only
+     * hands out POMs without unsaved edits
+     * 
+     * @param pom a Maven POM, may be null
+     * @return the edited POM for the same file if there is one, otherwise the given POM
+     */
+    public synchronized Pom resolve( Pom pom )
+    {
+        if( null == pom )
+        {
+            return null;
+        }
+
+        Pom existing = (Pom) m_dirtyPoms.get( pom.getFile() );
+        if( null == existing )
+        {
+            return pom;
+        }
+
+        return existing;
+    }
+
+    /**
+     * Write all edited POMs to disk, skipping any POM whose contents are unchanged; the workspace is empty afterwards
+     * 
+     * @return number of POMs actually written
+     * @throws IOException
+     */
+    public int commit()
+        throws IOException
+    {
+        Pom[] poms;
+        synchronized( this )
+        {
+            poms = (Pom[]) m_dirtyPoms.values().toArray( new Pom[m_dirtyPoms.size()] );
+            m_dirtyPoms.clear();
+        }
+
+        File[] tempFiles = new File[poms.length];
+        File[] backupFiles = new File[poms.length];
+        boolean[] replaced = new boolean[poms.length];
+        int written = 0;
+        boolean committed = false;
+        try
+        {
+            // serialize everything first, in case of failure
+            new TempFileWriter( poms, tempFiles ).run( m_parallelism );
+
+            // keep the original contents, in case a later replacement fails
+            for( int i = 0; i < poms.length; i++ )
+            {
+                File pomFile = poms[i].getFile();
+                if( null != tempFiles[i] && pomFile.exists() )
+                {
+                    backupFiles[i] = File.createTempFile( "pom", ".bak", pomFile.getParentFile() );
+                    FileUtils.copyFile( pomFile, backupFiles[i] );
+                }
+            }
+
+            for( int i = 0; i < poms.length; i++ )
+            {
+                if( null != tempFiles[i] )
+                {
+                    replaced[i] = true;
+                    ( (XppPom) poms[i] ).replaceFile( tempFiles[i] );
+                    tempFiles[i] = null;
+                    written++;
+                }
+                else if( !( poms[i] instanceof XppPom ) && poms[i].write() )
+                {
+                    written++;
+                }
+            }
+
+            committed = true;
+        }
+        finally
+        {
+            if( !committed )
+            {
+                rollback( poms, backupFiles, replaced );
+            }
+
+            // clean up after any failure
+            for( int i = 0; i < poms.length; i++ )
+            {
+                if( null != tempFiles[i] )
+                {
+                    tempFiles[i].delete();
+                }
+                if( null != backupFiles[i] )
+                {
+                    backupFiles[i].delete();
+                }
+                if( !committed )
+                {
+                    // unsaved edits must not be handed out to later readers
+                    PomUtils.evictPom( poms[i].getFile() );
+                }
+            }
+        }
+
+        return written;
+    }
+
+    /**
+     * Put back the original contents of any POMs replaced before the commit failed
+     * 
+     * @param poms POMs being committed
+     * @param backupFiles copies of the original POMs, null for new POMs
+     * @param replaced true for each POM that may have been replaced
+     */
+    private static void rollback( Pom[] poms, File[] backupFiles, boolean[] replaced )
+    {
+        for( int i = poms.length - 1; i >= 0; i-- )
+        {
+            if( !replaced[i] )
+            {
+                continue;
+            }
+
+            File pomFile = poms[i].getFile();
+            if( null == backupFiles[i] )
+            {
+                // didn't exist before the commit
+                pomFile.delete();
+                continue;
+            }
+
+            try
+            {
+                // the failed replacement may not have touched the original
+                if( !pomFile.exists() || !FileUtils.contentEquals( backupFiles[i], pomFile ) )
+                {
+                    FileUtils.copyFile( backupFiles[i], pomFile );
+                }
+                backupFiles[i].delete();
+            }
+            catch( IOException e )
+            {
+                // leave the copy behind for recovery
+                continue;
+            }
+            finally
+            {
+                backupFiles[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Serializes POMs to temporary files using a pool of worker threads
+     */
+    private static final class TempFileWriter
+    {
+        /**
+         * POMs to serialize
+         */
+        private final Pom[] m_poms;
+
+        /**
+         * Temporary files, null for unchanged POMs and POMs that can only be written in place
+         */
+        private final File[] m_tempFiles;
+
+        /**
+         * Index of the next POM to serialize
+         */
+        private int m_next;
+
+        /**
+         * First problem writing a POM
+         */
+        private IOException m_failure;
+
+        /**
+         * @param poms POMs to serialize
+         * @param tempFiles array to receive the temporary files
+         */
+        TempFileWriter( Pom[] poms, File[] tempFiles )
+        {
+            m_poms = poms;
+            m_tempFiles = tempFiles;
+        }
+
+        /**
+         * @param parallelism number of worker threads
+         * @throws IOException
+         */
+        void run( int parallelism )
+            throws IOException
+        {
+            int threads = Math.min( parallelism, m_poms.length );
+            if( threads <= 1 )
+            {
+                work();
+            }
+            else
+            {
+                Thread[] workers = new Thread[threads];
+                for( int i = 0; i < workers.length; i++ )
+                {
+                    workers[i] = new Thread( "pax-pom-writer-" + i )
+                    {
+                        public void run()
+                        {
+                            work();
+                        }
+                    };
+                    workers[i].setDaemon( true );
+                    workers[i].start();
+                }
+
+                boolean interrupted = false;
+                for( int i = 0; i < workers.length; )
+                {
+                    try
+                    {
+                        workers[i].join();
+                        i++;
+                    }
+                    catch( InterruptedException e )
+                    {
+                        // stop handing out work, but wait for POMs in progress so their temporary files are cleaned up
+                        fail( new IOException( "Interrupted while writing POMs" ) );
+                        interrupted = true;
+                    }
+                }
+
+                if( interrupted )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if( null != m_failure )
+            {
+                throw m_failure;
+            }
+        }
+
+        /**
+         * Worker loop, finishes when all POMs have been serialized or there was a problem
+         */
+        private void work()
+        {
+            int i;
+            while( ( i = nextIndex() ) >= 0 )
+            {
+                if( m_poms[i] instanceof XppPom )
+                {
+                    try
+                    {
+                        m_tempFiles[i] = ( (XppPom) m_poms[i] ).writeTempFile();
+                    }
+                    catch( IOException e )
+                    {
+                        fail( e );
+                    }
+                    catch( RuntimeException e )
+                    {
+                        IOException failure = new IOException( "Problem writing Maven POM: " + m_poms[i].getFile() );
+                        failure.initCause( e );
+                        fail( failure );
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return index of the next POM to serialize, -1 when there are no more
+         */
+        private synchronized int nextIndex()
+        {
+            if( null != m_failure || m_next >= m_poms.length )
+            {
+                return -1;
+            }
+            return m_next++;
+        }
+
+        /**
+         * @param e problem writing a POM
+         */
+        private synchronized void fail( IOException e )
+        {
+            if( null == m_failure )
+            {
+                m_failure = e;
+            }
+        }
+    }
+}
@@ -16,15 +16,18 @@ package org.ops4j.pax.construct.util;
  * limitations under the License.
  */
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
@@ -38,6 +41,16 @@ import org.ops4j.pax.construct.util.BndUtils.ExistingInstructionException;
 public class RoundTripBndFile
     implements Bnd
 {
+    /**
+     * Headers made up of comma separated clauses, where layout around the clauses doesn't change their meaning
+     */
+    private static final Set CLAUSE_HEADERS = new HashSet( Arrays.asList( new String[]
+    {
+        "Bundle-ClassPath", "Bundle-NativeCode", "Conditional-Package", "DynamicImport-Package", "Embed-Dependency",
+        "Export-Package", "Export-Service", "Import-Package", "Import-Service", "Include-Resource", "Private-Package",
+        "Require-Bundle"
+    } ) );
+
     /**
      * Underlying Bnd file
      */
@@ -53,6 +66,16 @@ public class RoundTripBndFile
      */
     private Properties m_oldInstructions;
 
+    /**
+     * Parsed instructions handed out for editing, keyed by directive
+     */
+    private final Map m_clauses;
+
+    /**
+     * Text of the Bnd file when it was last read or written, empty if the file doesn't exist
+     */
+    private char[] m_text;
+
     /**
      * @param bndFile property file containing Bnd instructions
      * @throws IOException
@@ -65,12 +88,25 @@ public class RoundTripBndFile
 
         m_oldInstructions = new Properties();
         m_newInstructions = new Properties();
+        m_clauses = new HashMap();
 
+        m_text = new char[0];
         if( m_file.exists() )
         {
-            FileInputStream bndStream = new FileInputStream( m_file );
-            m_oldInstructions.load( bndStream );
-            IOUtil.close( bndStream );
+            byte[] bytes;
+            InputStream bndStream = new FileInputStream( m_file );
+            try
+            {
+                bytes = IOUtil.toByteArray( bndStream );
+            }
+            finally
+            {
+                IOUtil.close( bndStream );
+            }
+
+            // read the file once, keeping the text (in platform encoding) for the writer
+            m_oldInstructions.load( new ByteArrayInputStream( bytes ) );
+            m_text = new String( bytes ).toCharArray();
         }
 
         m_newInstructions.putAll( m_oldInstructions );
@@ -81,6 +117,7 @@ public class RoundTripBndFile
      */
     public String getInstruction( String directive )
     {
+        syncClauses();
         return m_newInstructions.getProperty( directive );
     }
 
@@ -90,6 +127,7 @@ public class RoundTripBndFile
     public void setInstruction( String directive, String instruction, boolean overwrite )
         throws ExistingInstructionException
     {
+        syncClauses();
         if( overwrite || !m_newInstructions.containsKey( directive ) )
         {
             if( null == instruction )
@@ -101,6 +139,8 @@ public class RoundTripBndFile
             {
                 m_newInstructions.setProperty( directive, instruction );
             }
+
+            m_clauses.remove( directive );
         }
         else
         {
@@ -113,14 +153,54 @@ public class RoundTripBndFile
      */
     public boolean removeInstruction( String directive )
     {
+        syncClauses();
+        m_clauses.remove( directive );
         return null != m_newInstructions.remove( directive );
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public BndInstruction getClauses( String directive )
+    {
+        BndInstruction clauses = (BndInstruction) m_clauses.get( directive );
+        if( null == clauses )
+        {
+            clauses = BndInstruction.parse( m_newInstructions.getProperty( directive ) );
+            m_clauses.put( directive, clauses );
+        }
+        return clauses;
+    }
+
+    /**
+     * Apply any clause edits to the current instructions
+     */
+    private void syncClauses()
+    {
+        for( Iterator i = m_clauses.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            BndInstruction clauses = (BndInstruction) entry.getValue();
+            if( clauses.isModified() )
+            {
+                if( clauses.isEmpty() )
+                {
+                    m_newInstructions.remove( entry.getKey() );
+                }
+                else
+                {
+                    m_newInstructions.setProperty( (String) entry.getKey(), clauses.toString() );
+                }
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     public Set getDirectives()
     {
+        syncClauses();
         return m_newInstructions.keySet();
     }
 
@@ -166,211 +246,313 @@ public class RoundTripBndFile
     /**
      * {@inheritDoc}
      */
-    public void write()
+    public boolean write()
         throws IOException
     {
-        if( !m_newInstructions.equals( m_oldInstructions ) || !m_file.exists() )
+        syncClauses();
+
+        boolean written = false;
+        if( !m_file.exists() || !isUnchanged() )
         {
-            writeUpdatedInstructions();
+            written = writeUpdatedInstructions();
         }
 
         m_oldInstructions.clear();
         m_oldInstructions.putAll( m_newInstructions );
+
+        if( written )
+        {
+            // keep session cache in step with the file
+            BndUtils.cacheBnd( this );
+        }
+
+        return written;
+    }
+
+    /**
+     * @return true if there are instruction or clause edits that have not been written yet
+     */
+    boolean isDirty()
+    {
+        syncClauses();
+        return !m_newInstructions.equals( m_oldInstructions );
+    }
+
+    /**
+     * @return true if the current instructions mean the same as the last saved ones, ignoring layout differences
+     *         between clauses of clause-list headers
+     */
+    private boolean isUnchanged()
+    {
+        if( m_newInstructions.equals( m_oldInstructions ) )
+        {
+            return true;
+        }
+        else if( !m_newInstructions.keySet().equals( m_oldInstructions.keySet() ) )
+        {
+            return false;
+        }
+
+        for( Enumeration e = m_newInstructions.keys(); e.hasMoreElements(); )
+        {
+            String key = (String) e.nextElement();
+
+            String newValue = m_newInstructions.getProperty( key );
+            String oldValue = m_oldInstructions.getProperty( key );
+
+            // free-text headers (like Bundle-Name) must match exactly
+            if( !newValue.equals( oldValue )
+                && ( !CLAUSE_HEADERS.contains( key ) || !BndInstruction.parse( newValue ).sameClauses(
+                    BndInstruction.parse( oldValue ) ) ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     /**
-     * Write changes to disk, preserving formatting of unaffected lines
+     * Write changes to disk in a single pass over the existing text, copying unaffected lines exactly as they were
      * 
+     * @return true if the file was written, false if the text would be the same
      * @throws IOException
      */
-    private void writeUpdatedInstructions()
+    private boolean writeUpdatedInstructions()
         throws IOException
     {
-        List lines = readLines();
-        List block = new ArrayList();
-
-        boolean skip = false;
-        boolean echo = true;
+        char[] text = m_file.exists() ? m_text : new char[0];
+        String newline = getLineSeparator( text );
 
         Properties instructions = new Properties();
         instructions.putAll( m_newInstructions );
 
-        for( Iterator i = lines.iterator(); i.hasNext(); )
+        StringBuffer buf = new StringBuffer( text.length + 256 );
+
+        int commentStart = -1;
+        boolean afterInstruction = false;
+        boolean beforeComment = false;
+
+        int lineStart = 0;
+        while( lineStart < text.length )
         {
-            String line = (String) i.next();
+            int lineEnd = endOfLine( text, lineStart );
+            int keyStart = skipWhitespace( text, lineStart, lineEnd );
 
-            if( isWhitespaceOrComment( line ) )
+            if( keyStart == lineEnd )
+            {
+                // blank line detaches any comment from the next instruction
+                commentStart = -1;
+                afterInstruction = false;
+            }
+            else if( '#' == text[keyStart] || '!' == text[keyStart] )
             {
-                block.add( line );
-                skip = false;
+                if( commentStart < 0 )
+                {
+                    commentStart = buf.length();
+                    beforeComment = afterInstruction;
+                }
+                afterInstruction = false;
             }
             else
             {
-                if( !skip )
+                // an instruction runs on until a line without a continuation marker
+                int instructionEnd = lineEnd;
+                while( isLineContinuation( text, lineStart, instructionEnd ) )
                 {
-                    // check to see if we should update / remove / leave alone
-                    echo = checkInstructionLine( block, line, instructions );
+                    int continuedStart = startOfNextLine( text, instructionEnd );
+                    int continuedEnd = endOfLine( text, continuedStart );
+                    if( skipWhitespace( text, continuedStart, continuedEnd ) == continuedEnd )
+                    {
+                        break; // blank line ends the instruction, same as Properties.load
+                    }
+                    instructionEnd = continuedEnd;
                 }
 
-                if( echo )
+                int nextStart = startOfNextLine( text, instructionEnd );
+
+                String key = parseKey( text, keyStart, lineEnd );
+                if( instructions.containsKey( key ) )
                 {
-                    block.add( line );
+                    String newValue = (String) instructions.remove( key );
+                    if( newValue.equals( m_oldInstructions.getProperty( key ) ) )
+                    {
+                        // no change
+                        buf.append( text, lineStart, nextStart - lineStart );
+                    }
+                    else
+                    {
+                        // old instruction has been altered, keep original line ending
+                        writeInstruction( buf, key, newValue, newline );
+                        buf.append( text, instructionEnd, nextStart - instructionEnd );
+                    }
+                    afterInstruction = true;
+                }
+                else if( commentStart >= 0 )
+                {
+                    // remove old instruction along with its comment
+                    buf.setLength( commentStart );
+                    afterInstruction = beforeComment;
                 }
 
-                // continue skipping to end of line
-                skip = isLineContinuation( line );
+                commentStart = -1;
+                lineStart = nextStart;
+                continue;
             }
+
+            int nextStart = startOfNextLine( text, lineEnd );
+            buf.append( text, lineStart, nextStart - lineStart );
+            lineStart = nextStart;
         }
 
         // append any new instructions...
         for( Enumeration e = instructions.keys(); e.hasMoreElements(); )
         {
+            int length = buf.length();
+            if( length > 0 && !isNewline( buf.charAt( length - 1 ) ) )
+            {
+                buf.append( newline );
+            }
+            if( afterInstruction )
+            {
+                buf.append( newline );
+            }
+
             String key = (String) e.nextElement();
             String value = instructions.getProperty( key );
-            writeInstruction( block, key, value );
+            writeInstruction( buf, key, value, newline );
+
+            buf.append( newline );
+            afterInstruction = true;
+        }
+
+        if( m_file.exists() && isSameText( buf, text ) )
+        {
+            return false;
         }
 
         // finally write updated text back to the file
-        BufferedWriter writer = new BufferedWriter( StreamFactory.newPlatformWriter( m_file ) );
-        writeInstructionBlock( writer, block );
-        IOUtil.close( writer );
+        String newText = buf.toString();
+        Writer writer = StreamFactory.newPlatformWriter( m_file, newText.length() );
+        try
+        {
+            writer.write( newText );
+        }
+        finally
+        {
+            IOUtil.close( writer );
+        }
+
+        m_text = newText.toCharArray();
+        return true;
     }
 
     /**
-     * Write a block of comments and instructions to the Bnd file
-     * 
-     * @param bndWriter writer for the Bnd file
-     * @param block comment block
-     * @throws IOException
+     * @param buf updated text
+     * @param text existing text
+     * @return true if both hold the same characters
      */
-    private static void writeInstructionBlock( BufferedWriter bndWriter, List block )
-        throws IOException
+    private static boolean isSameText( StringBuffer buf, char[] text )
     {
-        boolean needSpace = false;
-        for( Iterator i = block.iterator(); i.hasNext(); )
+        if( buf.length() != text.length )
         {
-            String line = (String) i.next();
-
-            boolean isSpace = isWhitespaceOrComment( line );
-
-            if( needSpace && !isSpace )
-            {
-                bndWriter.newLine();
-            }
-
-            needSpace = false;
+            return false;
+        }
 
-            if( !isSpace && !isLineContinuation( line ) )
+        for( int i = 0; i < text.length; i++ )
+        {
+            if( buf.charAt( i ) != text[i] )
             {
-                needSpace = true;
+                return false;
             }
-
-            bndWriter.write( line );
-            bndWriter.newLine();
         }
+
+        return true;
     }
 
     /**
-     * This assumes most Bnd files will be relatively small
-     * 
-     * @return list of all the lines in the Bnd file
-     * @throws IOException
+     * @param text Bnd file text
+     * @return first line separator used in the text, otherwise the platform line separator
      */
-    private List readLines()
-        throws IOException
+    private static String getLineSeparator( char[] text )
     {
-        List lines = new ArrayList();
-
-        if( m_file.exists() )
+        int lineEnd = endOfLine( text, 0 );
+        if( lineEnd < text.length )
         {
-            BufferedReader bndReader = new BufferedReader( StreamFactory.newPlatformReader( m_file ) );
-            while( bndReader.ready() )
-            {
-                lines.add( bndReader.readLine() );
-            }
-            IOUtil.close( bndReader );
+            return new String( text, lineEnd, startOfNextLine( text, lineEnd ) - lineEnd );
         }
 
-        return lines;
+        return System.getProperty( "line.separator" );
     }
 
     /**
-     * Check existing line against instructions and update if necessary
-     * 
-     * @param block comment block
-     * @param line existing line
-     * @param instructions the instructions to write to disk
-     * @return true if existing line should be echoed unchanged, otherwise false
+     * @param c character
+     * @return true if the character starts or ends a line separator
      */
-    private boolean checkInstructionLine( List block, String line, Properties instructions )
+    private static boolean isNewline( char c )
     {
-        String[] keyAndValue = line.split( "[=: \t\r\n\f]", 2 );
-        String key = keyAndValue[0].trim();
+        return '\n' == c || '\r' == c;
+    }
 
-        if( instructions.containsKey( key ) )
+    /**
+     * @param text Bnd file text
+     * @param from start of the line
+     * @return index of the line separator, or the end of the text
+     */
+    private static int endOfLine( char[] text, int from )
+    {
+        int i = from;
+        while( i < text.length && !isNewline( text[i] ) )
         {
-            String newValue = (String) instructions.remove( key );
-            if( newValue.equals( m_oldInstructions.getProperty( key ) ) )
-            {
-                // no change
-                return true;
-            }
-
-            // old instruction has been altered
-            writeInstruction( block, key, newValue );
-            return false;
+            i++;
         }
-
-        // remove old instruction comment
-        removeInstructionComment( block );
-        return false;
+        return i;
     }
 
     /**
-     * Remove the comment that's directly attached to the current instruction
-     * 
-     * @param block comment block
+     * @param text Bnd file text
+     * @param lineEnd index of a line separator, or the end of the text
+     * @return start of the following line
      */
-    private static void removeInstructionComment( List block )
+    private static int startOfNextLine( char[] text, int lineEnd )
     {
-        while( !block.isEmpty() )
+        if( lineEnd >= text.length )
         {
-            // remove lines in reverse
-            String line = (String) block.remove( block.size() - 1 );
-
-            // assume comment ends once we see an empty line or a non-comment
-            if( line.trim().length() == 0 || !isWhitespaceOrComment( line ) )
-            {
-                block.add( line );
-                return;
-            }
+            return lineEnd;
+        }
+        if( '\r' == text[lineEnd] && lineEnd + 1 < text.length && '\n' == text[lineEnd + 1] )
+        {
+            return lineEnd + 2;
         }
+        return lineEnd + 1;
     }
 
     /**
-     * @param line existing line
-     * @return true if line only contains whitespace or comments
+     * @param text Bnd file text
+     * @param from start of the range
+     * @param to end of the range
+     * @return index of the first non-whitespace character, or the end of the range
      */
-    private static boolean isWhitespaceOrComment( String line )
+    private static int skipWhitespace( char[] text, int from, int to )
     {
-        String comment = line.trim();
-        if( comment.length() == 0 )
+        int i = from;
+        while( i < to && ( ' ' == text[i] || '\t' == text[i] || '\f' == text[i] ) )
         {
-            return true;
+            i++;
         }
-
-        char c = comment.charAt( 0 );
-        return '#' == c || '!' == c;
+        return i;
     }
 
     /**
-     * @param line existing line
+     * @param text Bnd file text
+     * @param lineStart start of the line
+     * @param lineEnd end of the line
      * @return true if line ends in a continuation marker
      */
-    private static boolean isLineContinuation( String line )
+    private static boolean isLineContinuation( char[] text, int lineStart, int lineEnd )
     {
         boolean continueLine = false;
-        for( int c = line.length() - 1; c >= 0 && '\\' == line.charAt( c ); c-- )
+        for( int c = lineEnd - 1; c >= lineStart && '\\' == text[c]; c-- )
         {
             continueLine = !continueLine;
         }
@@ -378,77 +560,129 @@ public class RoundTripBndFile
     }
 
     /**
-     * Mark instruction clauses with line-continuation markers
+     * Extract the property key, which ends at the first unescaped separator or whitespace
      * 
-     * @param instruction Bnd instruction
-     * @return marked instruction
+     * @param text Bnd file text
+     * @param keyStart start of the key
+     * @param lineEnd end of the line
+     * @return the unescaped key
      */
-    private static String markInstructionClauses( String instruction )
+    private static String parseKey( char[] text, int keyStart, int lineEnd )
     {
-        StringBuffer buf = new StringBuffer();
-        boolean inQuotes = false;
+        int i = keyStart;
+        while( i < lineEnd && !isKeyTerminator( text[i] ) && '\\' != text[i] )
+        {
+            i++;
+        }
 
-        // add \\ markers between clauses
-        char[] text = instruction.toCharArray();
-        for( int i = 0; i < text.length; i++ )
+        if( i >= lineEnd || '\\' != text[i] )
         {
-            char c = text[i];
-            buf.append( c );
+            // common case, no escapes
+            return new String( text, keyStart, i - keyStart );
+        }
+
+        StringBuffer key = new StringBuffer();
+        key.append( text, keyStart, i - keyStart );
 
-            switch( c )
+        while( i < lineEnd && !isKeyTerminator( text[i] ) )
+        {
+            char c = text[i++];
+            if( '\\' == c && i < lineEnd )
             {
-                case '\'':
-                case '\"':
-                    inQuotes = !inQuotes;
-                    break;
-                case ',':
-                    if( !inQuotes )
-                    {
-                        buf.append( '\\' );
-                    }
-                    break;
-                default:
-                    break;
+                c = text[i++];
+                switch( c )
+                {
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'u':
+                        if( i + 4 <= lineEnd )
+                        {
+                            try
+                            {
+                                c = (char) Integer.parseInt( new String( text, i, 4 ), 16 );
+                                i += 4;
+                            }
+                            catch( NumberFormatException e )
+                            {
+                                // leave as plain 'u'
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
             }
+            key.append( c );
         }
 
-        return buf.toString();
+        return key.toString();
+    }
+
+    /**
+     * @param c character
+     * @return true if the character ends a property key
+     */
+    private static boolean isKeyTerminator( char c )
+    {
+        return '=' == c || ':' == c || ' ' == c || '\t' == c || '\f' == c;
     }
 
     /**
-     * Write instruction as a standard property, with continuation markers at every comma
+     * Write instruction as a standard property, with continuation markers between clauses of clause-list headers
      * 
-     * @param block comment block
+     * @param buf text buffer
      * @param key property key
      * @param value property value
+     * @param newline line separator
      */
-    private static void writeInstruction( List block, String key, String value )
+    private static void writeInstruction( StringBuffer buf, String key, String value, String newline )
     {
-        StringBuffer buf = new StringBuffer( key + ':' );
-        String instruction = markInstructionClauses( value );
+        buf.append( key ).append( ':' );
+
+        if( !CLAUSE_HEADERS.contains( key ) )
+        {
+            // free text, splitting it at commas would lose any whitespace after them
+            if( value.length() > 0 )
+            {
+                buf.append( ' ' ).append( value );
+            }
+            return;
+        }
 
         // heuristic: only wrap long instructions
-        boolean multiLine = ( instruction.length() > 80 );
+        boolean multiLine = ( value.length() > 80 );
 
         // output clauses on single or multiple lines
-        String[] clauses = instruction.split( "\\\\" );
-        for( int i = 0; i < clauses.length; i++ )
+        boolean first = true;
+        for( Iterator i = BndInstruction.parse( value ).iterator(); i.hasNext(); )
         {
             if( multiLine )
             {
                 buf.append( '\\' );
-                block.add( buf.toString() );
-                buf.setLength( 0 );
+                buf.append( newline );
                 buf.append( ' ' );
             }
-            else if( i == 0 )
+            else if( first )
             {
                 buf.append( ' ' );
             }
 
-            buf.append( clauses[i].trim() );
+            buf.append( i.next() );
+            if( i.hasNext() )
+            {
+                buf.append( ',' );
+            }
+            first = false;
         }
-
-        block.add( buf.toString() );
     }
 }
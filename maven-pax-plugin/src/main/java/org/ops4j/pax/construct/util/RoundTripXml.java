@@ -17,9 +17,16 @@ package org.ops4j.pax.construct.util;
  */
 
 import java.io.IOException;
+import java.io.Reader;
 import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.codehaus.plexus.util.xml.Xpp3Dom;
 import org.codehaus.plexus.util.xml.pull.MXParser;
@@ -33,6 +40,16 @@ import org.codehaus.plexus.util.xml.pull.XmlSerializer;
  */
 public final class RoundTripXml
 {
+    /**
+     * Optional pool of element values shared between documents
+     */
+    private static final ValuePool VALUE_POOL = new ValuePool();
+
+    /**
+     * Parser released by each thread, kept so its internal buffers can be reused for the next document
+     */
+    private static final ThreadLocal PARSER_POOL = new ThreadLocal();
+
     /**
      * Hide constructor for utility class
      */
@@ -44,13 +61,33 @@ public final class RoundTripXml
     }
 
     /**
-     * @return round-trip XML parser
+     * @return round-trip XML parser, reusing the last parser released by this thread when possible
      */
     public static XmlPullParser createParser()
     {
+        XmlPullParser parser = (XmlPullParser) PARSER_POOL.get();
+        if( null != parser )
+        {
+            PARSER_POOL.set( null );
+            return parser;
+        }
+
         return new RoundTripParser();
     }
 
+    /**
+     * Hand a parser back for reuse by the current thread, the caller must not use it again afterwards
+     * 
+     * @param parser round-trip XML parser that is no longer needed
+     */
+    public static void releaseParser( XmlPullParser parser )
+    {
+        if( parser instanceof RoundTripParser )
+        {
+            PARSER_POOL.set( parser );
+        }
+    }
+
     /**
      * @return round-trip XML serializer
      */
@@ -59,6 +96,147 @@ public final class RoundTripXml
         return new RoundTripSerializer();
     }
 
+    /**
+     * @param lineSeparator line separator, followed by the indentation of the line where the fragment starts
+     * @param indentUnit indentation added for each level of nesting
+     * @return round-trip XML serializer for an element nested inside an existing document
+     */
+    static XmlSerializer createFragmentSerializer( String lineSeparator, String indentUnit )
+    {
+        return new RoundTripSerializer( lineSeparator, indentUnit );
+    }
+
+    /**
+     * Source ranges are recorded as four offsets per element, in document order: start of the start tag, end of the
+     * start tag, start of the end tag, and end of the end tag. Empty elements and comments have no end tag, so their
+     * third offset is -1 and their second offset is the same as their fourth.
+     * 
+     * @param parser parser that has just been used to build a document
+     * @return character offsets of every element in the source, null if the parser doesn't record offsets
+     */
+    static int[] getSourceOffsets( XmlPullParser parser )
+    {
+        if( parser instanceof RoundTripParser )
+        {
+            return ( (RoundTripParser) parser ).getOffsets();
+        }
+
+        return null;
+    }
+
+    /**
+     * Share recurring element values, such as common groupIds and versions, between documents built from now on. This
+     * saves memory when many documents are kept at once, at the cost of a pool lookup for each value.
+     * 
+     * @param enabled true to share element values, false to stop sharing and release the pool
+     */
+    public static void setValuePooling( boolean enabled )
+    {
+        VALUE_POOL.setEnabled( enabled );
+    }
+
+    /**
+     * Replace element values with shared copies from the pool, does nothing unless value pooling is enabled
+     * 
+     * @param dom document built from a round-trip XML parser
+     */
+    static void poolValues( Xpp3Dom dom )
+    {
+        if( null != dom && VALUE_POOL.isEnabled() )
+        {
+            VALUE_POOL.poolValues( dom );
+        }
+    }
+
+    /**
+     * Weak pool of element values, values are released once no document refers to them
+     */
+    private static final class ValuePool
+    {
+        /**
+         * Longer values are unlikely to recur, so they are left alone
+         */
+        private static final int MAX_POOLED_LENGTH = 128;
+
+        /**
+         * Maps each pooled value to a weak reference to itself
+         */
+        private Map m_values;
+
+        /**
+         * @param enabled true to share element values, false to stop sharing and release the pool
+         */
+        synchronized void setEnabled( boolean enabled )
+        {
+            if( !enabled )
+            {
+                m_values = null;
+            }
+            else if( null == m_values )
+            {
+                m_values = new WeakHashMap();
+            }
+        }
+
+        /**
+         * @return true if values are being shared
+         */
+        synchronized boolean isEnabled()
+        {
+            return null != m_values;
+        }
+
+        /**
+         * @param dom document whose values should be shared
+         */
+        synchronized void poolValues( Xpp3Dom dom )
+        {
+            if( null == m_values )
+            {
+                return;
+            }
+
+            // walk the DOM using our own stack, so deep documents can't overflow the thread stack
+            List pending = new ArrayList();
+            pending.add( dom );
+            while( !pending.isEmpty() )
+            {
+                Xpp3Dom node = (Xpp3Dom) pending.remove( pending.size() - 1 );
+
+                String value = node.getValue();
+                if( null != value && value.length() <= MAX_POOLED_LENGTH )
+                {
+                    node.setValue( pool( value ) );
+                }
+
+                for( int i = node.getChildCount() - 1; i >= 0; i-- )
+                {
+                    pending.add( node.getChild( i ) );
+                }
+            }
+        }
+
+        /**
+         * @param value element value
+         * @return pooled copy of the value
+         */
+        private String pool( String value )
+        {
+            WeakReference ref = (WeakReference) m_values.get( value );
+            if( null != ref )
+            {
+                String pooled = (String) ref.get();
+                if( null != pooled )
+                {
+                    return pooled;
+                }
+            }
+
+            m_values.put( value, new WeakReference( value ) );
+            return value;
+        }
+    }
+
     /**
      * Customize parser to preserve comments as special tags
      */
@@ -69,6 +247,26 @@ public final class RoundTripXml
          */
         private boolean m_handleComment = false;
 
+        /**
+         * Source ranges of elements seen so far, see {@link RoundTripXml#getSourceOffsets(XmlPullParser)}
+         */
+        private int[] m_offsets = new int[256];
+
+        /**
+         * Number of offsets recorded so far
+         */
+        private int m_numOffsets;
+
+        /**
+         * Where to find the ranges of the currently open elements
+         */
+        private int[] m_openElements = new int[16];
+
+        /**
+         * Number of currently open elements
+         */
+        private int m_numOpenElements;
+
         /**
          * Use default config
          */
@@ -77,6 +275,30 @@ public final class RoundTripXml
             super();
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        public void setInput( Reader in )
+            throws XmlPullParserException
+        {
+            super.setInput( in );
+
+            // parser may be reused for several documents
+            m_handleComment = false;
+            m_numOffsets = 0;
+            m_numOpenElements = 0;
+        }
+
+        /**
+         * @return character offsets of every element parsed so far
+         */
+        int[] getOffsets()
+        {
+            int[] offsets = new int[m_numOffsets];
+            System.arraycopy( m_offsets, 0, offsets, 0, m_numOffsets );
+            return offsets;
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -88,6 +310,7 @@ public final class RoundTripXml
             {
                 // end pseudo-tag
                 m_handleComment = false;
+                closeElement( -1, -1 );
                 return END_TAG;
             }
 
@@ -97,12 +320,69 @@ public final class RoundTripXml
             {
                 // start pseudo-tag
                 m_handleComment = true;
+
+                // comment text lies between "<!--" and "-->"
+                openElement( bufAbsoluteStart + posStart - 4, bufAbsoluteStart + posEnd + 3, true );
                 return START_TAG;
             }
 
+            if( START_TAG == type )
+            {
+                openElement( bufAbsoluteStart + posStart, bufAbsoluteStart + posEnd, isEmptyElementTag() );
+            }
+            else if( END_TAG == type )
+            {
+                closeElement( bufAbsoluteStart + posStart, bufAbsoluteStart + posEnd );
+            }
+
             return type;
         }
 
+        /**
+         * @param start start of the start tag
+         * @param end end of the start tag
+         * @param closed true if the element has no separate end tag
+         */
+        private void openElement( int start, int end, boolean closed )
+        {
+            if( m_numOffsets + 4 > m_offsets.length )
+            {
+                int[] offsets = new int[m_offsets.length * 2];
+                System.arraycopy( m_offsets, 0, offsets, 0, m_numOffsets );
+                m_offsets = offsets;
+            }
+            if( m_numOpenElements == m_openElements.length )
+            {
+                int[] openElements = new int[m_openElements.length * 2];
+                System.arraycopy( m_openElements, 0, openElements, 0, m_numOpenElements );
+                m_openElements = openElements;
+            }
+
+            m_openElements[m_numOpenElements++] = m_numOffsets;
+
+            m_offsets[m_numOffsets++] = start;
+            m_offsets[m_numOffsets++] = end;
+            m_offsets[m_numOffsets++] = closed ? -1 : 0;
+            m_offsets[m_numOffsets++] = closed ? end : -1;
+        }
+
+        /**
+         * @param start start of the end tag
+         * @param end end of the end tag
+         */
+        private void closeElement( int start, int end )
+        {
+            if( m_numOpenElements > 0 )
+            {
+                int i = m_openElements[--m_numOpenElements];
+                if( m_offsets[i + 3] < 0 )
+                {
+                    m_offsets[i + 2] = start;
+                    m_offsets[i + 3] = end;
+                }
+            }
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -114,7 +394,14 @@ public final class RoundTripXml
                 return "!--" + getText();
             }
 
-            return super.getName();
+            String name = super.getName();
+            if( null != name )
+            {
+                // element names come from a small vocabulary, so share them between documents
+                name = name.intern();
+            }
+
+            return name;
         }
 
         /**
@@ -154,11 +441,24 @@ public final class RoundTripXml
     {
         private static final String NEWLINE = System.getProperty( "line.separator" );
 
+        /**
+         * Top-level tags that stay grouped together without blank lines in between
+         */
+        private static final Set STICKY_TAGS = new HashSet( Arrays.asList( new String[]
+        {
+            "groupId", "artifactId", "version"
+        } ) );
+
         /**
          * Are we serializing a comment?
          */
         private boolean m_handleComment = false;
 
+        /**
+         * Are we serializing a fragment of a larger document?
+         */
+        private final boolean m_fragment;
+
         /**
          * Tweak config to use standard Maven layout
          */
@@ -166,10 +466,29 @@ public final class RoundTripXml
         {
             super();
 
+            m_fragment = false;
+
             setProperty( PROPERTY_SERIALIZER_INDENTATION, "  " );
             setProperty( PROPERTY_SERIALIZER_LINE_SEPARATOR, NEWLINE );
         }
 
+        /**
+         * Tweak config to match the layout of the surrounding document
+         * 
+         * @param lineSeparator line separator, followed by the indentation of the line where the fragment starts
+         * @param indentUnit indentation added for each level of nesting
+         */
+        RoundTripSerializer( String lineSeparator, String indentUnit )
+        {
+            super();
+
+            m_fragment = true;
+
+            // every new line in the fragment must also line up with the surrounding document
+            setProperty( PROPERTY_SERIALIZER_INDENTATION, indentUnit );
+            setProperty( PROPERTY_SERIALIZER_LINE_SEPARATOR, lineSeparator );
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -182,7 +501,7 @@ public final class RoundTripXml
                 m_handleComment = true;
 
                 closeStartTag();
-                if( getDepth() <= 1 )
+                if( getDepth() <= 1 && !m_fragment )
                 {
                     // newline before top-level comments
                     out.write( lineSeparator );
@@ -190,15 +509,11 @@ public final class RoundTripXml
                 writeIndent();
 
                 String text = name.substring( 3 );
-                comment( text.replaceAll( "[\r\n\f]", NEWLINE ) );
+                comment( normalizeNewlines( text ) );
                 return this;
             }
 
-            List stickyTags = Arrays.asList( new String[]
-            {
-                "groupId", "artifactId", "version"
-            } );
-            if( getDepth() <= 1 && !stickyTags.contains( name ) )
+            if( getDepth() <= 1 && !m_fragment && !STICKY_TAGS.contains( name ) )
             {
                 // newline before top-level groups
                 closeStartTag();
@@ -212,6 +527,52 @@ public final class RoundTripXml
             return super.startTag( namespace, name );
         }
 
+        /**
+         * @param text comment text
+         * @return text with each line break character replaced by the platform line separator
+         */
+        private static String normalizeNewlines( String text )
+        {
+            int length = text.length();
+
+            int i = 0;
+            while( i < length && !isNewline( text.charAt( i ) ) )
+            {
+                i++;
+            }
+
+            if( i == length )
+            {
+                return text; // nothing to replace, so avoid allocating
+            }
+
+            StringBuffer buf = new StringBuffer( length + 16 );
+            buf.append( text.substring( 0, i ) );
+            for( ; i < length; i++ )
+            {
+                char c = text.charAt( i );
+                if( isNewline( c ) )
+                {
+                    buf.append( NEWLINE );
+                }
+                else
+                {
+                    buf.append( c );
+                }
+            }
+
+            return buf.toString();
+        }
+
+        /**
+         * @param c character
+         * @return true if the character is a line break
+         */
+        private static boolean isNewline( char c )
+        {
+            return '\r' == c || '\n' == c || '\f' == c;
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -220,7 +581,7 @@ public final class RoundTripXml
         {
             if( !name.startsWith( "!--" ) )
             {
-                if( getDepth() == 1 )
+                if( getDepth() == 1 && !m_fragment )
                 {
                     // newline after final group
                     out.write( lineSeparator );
@@ -16,6 +16,7 @@ package org.ops4j.pax.construct.util;
  * limitations under the License.
  */
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -33,6 +34,16 @@ import org.codehaus.plexus.util.xml.XmlStreamReader;
  */
 public final class StreamFactory
 {
+    /**
+     * Default size of the write buffer, large enough for most POMs and Bnd files
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * Largest write buffer to allocate up-front, bigger files just flush more often
+     */
+    private static final int MAX_BUFFER_SIZE = 65536;
+
     /**
      * Hide constructor for utility class
      */
@@ -94,13 +105,25 @@ public final class StreamFactory
 
     /**
      * @param file file to be written
-     * @return writer with default platform encoding
+     * @return buffered writer with default platform encoding
      * @throws IOException
      */
     public static Writer newPlatformWriter( File file )
         throws IOException
     {
-        return new FileWriter( file );
+        return newPlatformWriter( file, DEFAULT_BUFFER_SIZE );
+    }
+
+    /**
+     * @param file file to be written
+     * @param expectedSize expected number of characters, used to size the write buffer
+     * @return buffered writer with default platform encoding
+     * @throws IOException
+     */
+    public static Writer newPlatformWriter( File file, long expectedSize )
+        throws IOException
+    {
+        return new BufferedWriter( new FileWriter( file ), bufferSize( expectedSize ) );
     }
 
     /**
@@ -123,20 +146,47 @@ public final class StreamFactory
 
     /**
      * @param xmlFile XML file to be written
-     * @return writer with correct XML encoding
+     * @return buffered writer with correct XML encoding
      * @throws IOException
      */
     public static Writer newXmlWriter( File xmlFile )
         throws IOException
+    {
+        return newXmlWriter( xmlFile, DEFAULT_BUFFER_SIZE );
+    }
+
+    /**
+     * @param xmlFile XML file to be written
+     * @param expectedSize expected number of characters, used to size the write buffer
+     * @return buffered writer with correct XML encoding
+     * @throws IOException
+     */
+    public static Writer newXmlWriter( File xmlFile, long expectedSize )
+        throws IOException
     {
         try
         {
-            return XmlStreamFactory.newXmlWriter( xmlFile );
+            return new BufferedWriter( XmlStreamFactory.newXmlWriter( xmlFile ), bufferSize( expectedSize ) );
         }
         catch( NoClassDefFoundError e )
         {
-            return newPlatformWriter( xmlFile );
+            return newPlatformWriter( xmlFile, expectedSize );
+        }
+    }
+
+    /**
+     * @param expectedSize expected number of characters
+     * @return buffer size big enough to hold the expected output in one go, within sensible limits
+     */
+    private static int bufferSize( long expectedSize )
+    {
+        if( expectedSize <= DEFAULT_BUFFER_SIZE )
+        {
+            return DEFAULT_BUFFER_SIZE;
         }
+
+        // allow some headroom for edits
+        return (int) Math.min( expectedSize + expectedSize / 8, MAX_BUFFER_SIZE );
     }
 
     /**
@@ -149,19 +199,36 @@ public final class StreamFactory
         try
         {
             reader = newXmlReader( xmlFile );
-            return ( (XmlStreamReader) reader ).getEncoding();
+            return getXmlEncoding( reader );
         }
         catch( IOException e )
         {
             return System.getProperty( "file.encoding" );
         }
-        catch( NoClassDefFoundError e )
-        {
-            return System.getProperty( "file.encoding" );
-        }
         finally
         {
             IOUtil.close( reader );
         }
     }
+
+    /**
+     * @param xmlReader reader from {@link #newXmlReader(File)}, which has already sniffed the XML encoding
+     * @return XML encoding used by the reader, otherwise the current platform encoding
+     */
+    public static String getXmlEncoding( Reader xmlReader )
+    {
+        try
+        {
+            if( xmlReader instanceof XmlStreamReader )
+            {
+                return ( (XmlStreamReader) xmlReader ).getEncoding();
+            }
+        }
+        catch( NoClassDefFoundError e )
+        {
+            // fall back to platform encoding
+        }
+
+        return System.getProperty( "file.encoding" );
+    }
 }
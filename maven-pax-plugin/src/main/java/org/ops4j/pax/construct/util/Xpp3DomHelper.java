@@ -14,6 +14,11 @@ package org.ops4j.pax.construct.util;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.codehaus.plexus.util.xml.Xpp3Dom;
 
 /**
@@ -59,9 +64,35 @@ public class Xpp3DomHelper
      * 
      * ii. otherwise, add the recessive child as a new child on the dominant root node.
      */
-    private static void mergeIntoXpp3Dom( Xpp3Dom dominant, Xpp3Dom recessive, Boolean childMergeOverride )
+    private static void mergeIntoXpp3Dom( Xpp3Dom dominant, Xpp3Dom recessive, Boolean childMergeOverride,
+        boolean moveRecessive )
+    {
+        // walk the DOM using our own stack, so deep documents can't overflow the thread stack
+        List pending = new ArrayList();
+        pending.add( new Xpp3Dom[]
+        {
+            dominant, recessive
+        } );
+
+        while( !pending.isEmpty() )
+        {
+            Xpp3Dom[] pair = (Xpp3Dom[]) pending.remove( pending.size() - 1 );
+            mergeNode( pair[0], pair[1], childMergeOverride, moveRecessive, pending );
+        }
+    }
+
+    /**
+     * Merge a single pair of nodes, child nodes that need merging are pushed onto the pending stack
+     * 
+     * @param dominant The dominant node
+     * @param recessive The recessive node, may be null
+     * @param childMergeOverride Overrides attribute flags to force merging or appending of child elements
+     * @param moveRecessive Move recessive children into the dominant node instead of copying them
+     * @param pending Stack of dominant and recessive pairs still to be merged
+     */
+    private static void mergeNode( Xpp3Dom dominant, Xpp3Dom recessive, Boolean childMergeOverride,
+        boolean moveRecessive, List pending )
     {
-        // TODO: share this as some sort of assembler, implement a walk interface?
         if( recessive == null )
         {
             return;
@@ -111,20 +142,81 @@ public class Xpp3DomHelper
             }
 
             Xpp3Dom[] children = recessive.getChildren();
+            if( !mergeChildren )
+            {
+                for( int i = 0; i < children.length; i++ )
+                {
+                    dominant.addChild( moveRecessive ? children[i] : new Xpp3Dom( children[i] ) );
+                }
+                return;
+            }
+
+            Map dominantChildren = indexChildren( dominant );
+            Xpp3Dom[] merges = new Xpp3Dom[children.length];
             for( int i = 0; i < children.length; i++ )
             {
                 Xpp3Dom child = children[i];
-                Xpp3Dom childDom = dominant.getChild( child.getName() );
-                if( mergeChildren && childDom != null )
+                String name = child.getName();
+
+                Xpp3Dom childDom = (Xpp3Dom) dominantChildren.get( name );
+                if( null == childDom && dominantChildren.containsKey( name ) )
+                {
+                    // several children share this name, let the DOM decide which one matches
+                    childDom = dominant.getChild( name );
+                    dominantChildren.put( name, childDom );
+                }
+
+                if( childDom != null )
                 {
-                    mergeIntoXpp3Dom( childDom, child, childMergeOverride );
+                    merges[i] = childDom;
                 }
                 else
                 {
-                    dominant.addChild( new Xpp3Dom( child ) );
+                    childDom = moveRecessive ? child : new Xpp3Dom( child );
+                    dominant.addChild( childDom );
+                    dominantChildren.put( name, childDom );
                 }
             }
+
+            // push in reverse so children are merged in document order
+            for( int i = children.length - 1; i >= 0; i-- )
+            {
+                if( merges[i] != null )
+                {
+                    pending.add( new Xpp3Dom[]
+                    {
+                        merges[i], children[i]
+                    } );
+                }
+            }
+        }
+    }
+
+    /**
+     * Index children by name in one pass, rather than searching all the children for each name
+     * 
+     * @param node The parent node
+     * @return map of child names to children, names shared by several children map to null
+     */
+    private static Map indexChildren( Xpp3Dom node )
+    {
+        Map index = new HashMap();
+
+        Xpp3Dom[] children = node.getChildren();
+        for( int i = 0; i < children.length; i++ )
+        {
+            String name = children[i].getName();
+            if( index.containsKey( name ) )
+            {
+                index.put( name, null );
+            }
+            else
+            {
+                index.put( name, children[i] );
+            }
         }
+
+        return index;
     }
 
     /**
@@ -142,7 +234,7 @@ public class Xpp3DomHelper
     {
         if( dominant != null )
         {
-            mergeIntoXpp3Dom( dominant, recessive, childMergeOverride );
+            mergeIntoXpp3Dom( dominant, recessive, childMergeOverride, false );
             return dominant;
         }
         return recessive;
@@ -162,7 +254,25 @@ public class Xpp3DomHelper
     {
         if( dominant != null )
         {
-            mergeIntoXpp3Dom( dominant, recessive, null );
+            mergeIntoXpp3Dom( dominant, recessive, null, false );
+            return dominant;
+        }
+        return recessive;
+    }
+
+    /**
+     * Merge two DOMs in the same way as {@link #mergeXpp3Dom(Xpp3Dom, Xpp3Dom)}, except recessive children without a
+     * dominant counterpart are moved into the dominant DOM rather than copied. The recessive DOM must not be used
+     * afterwards, as parts of it now belong to the dominant DOM.
+     * 
+     * @param dominant The dominant DOM into which the recessive value/attributes/children will be merged
+     * @param recessive The recessive DOM, which will be taken apart during the merge
+     */
+    static Xpp3Dom moveIntoXpp3Dom( Xpp3Dom dominant, Xpp3Dom recessive )
+    {
+        if( dominant != null )
+        {
+            mergeIntoXpp3Dom( dominant, recessive, null, true );
             return dominant;
         }
         return recessive;
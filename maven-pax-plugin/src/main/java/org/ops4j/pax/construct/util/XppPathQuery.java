@@ -16,12 +16,8 @@ package org.ops4j.pax.construct.util;
  * limitations under the License.
  */
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -43,9 +39,9 @@ public class XppPathQuery
     private static final String PARENT = NODE + "(?:/" + NODE + ")*";
 
     /**
-     * Test compares dot (ie. current node) or a node to a quoted string
+     * Test compares dot (ie. current node) or a node to a quoted string, or to a placeholder bound later on
      */
-    private static final String TEST = "(.|" + NODE + ")='(.*)'";
+    private static final String TEST = "(.|" + NODE + ")=(?:'(.*)'|(\\?))";
 
     /**
      * Binary operator can be and / or
@@ -63,24 +59,215 @@ public class XppPathQuery
     private static final String XPATH = "/?(" + PARENT + ")/(" + NODE + ")\\[\\s*(" + PREDICATE + ")\\s*\\]";
 
     /**
-     * Compiled XPATH expression matcher
+     * Compiled XPATH expression
      */
-    private final Matcher m_xpathParser;
+    private static final Pattern XPATH_PATTERN = Pattern.compile( XPATH );
+
+    /**
+     * Compiled test expression
+     */
+    private static final Pattern TEST_PATTERN = Pattern.compile( TEST );
+
+    /**
+     * Compiled whitespace separator
+     */
+    private static final Pattern WHITESPACE_PATTERN = Pattern.compile( "\\s+" );
+
+    /**
+     * Maximum number of parsed queries kept by {@link #compile(String)}
+     */
+    private static final int MAX_CACHED_QUERIES = 64;
+
+    /**
+     * Recently parsed queries, keyed by expression and evicted in least-recently-used order
+     */
+    private static final Map QUERY_CACHE = new LinkedHashMap( 16, 0.75f, true )
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry( Map.Entry eldest )
+        {
+            return size() > MAX_CACHED_QUERIES;
+        }
+    };
+
+    /**
+     * Path from the document root to the parent node
+     */
+    private final String[] m_parentNodes;
+
+    /**
+     * Name of the nodes being tested
+     */
+    private final String m_pivotNode;
+
+    /**
+     * Node tested by each clause, dot means the current node
+     */
+    private final String[] m_testNodes;
+
+    /**
+     * Value expected by each clause, null never matches
+     */
+    private final String[] m_testValues;
+
+    /**
+     * Marks clauses whose value is supplied by bind
+     */
+    private final boolean[] m_placeholders;
+
+    /**
+     * Combine each clause with the previous results using "and", otherwise use "or"
+     */
+    private final boolean[] m_conjunctions;
+
+    /**
+     * Number of placeholders in this query
+     */
+    private final int m_numPlaceholders;
+
+    /**
+     * True if values have been supplied for the placeholders
+     */
+    private final boolean m_bound;
 
     /**
      * Create a new XPATH query object from a given string
      * 
-     * @param xpath simple XPATH query
+     * @param xpath simple XPATH query, test values can be written as ? and supplied later using bind
      * @throws IllegalArgumentException
      */
     public XppPathQuery( String xpath )
         throws IllegalArgumentException
     {
-        m_xpathParser = Pattern.compile( XPATH ).matcher( xpath );
-        if( !m_xpathParser.matches() )
+        Matcher xpathParser = XPATH_PATTERN.matcher( xpath );
+        if( !xpathParser.matches() )
         {
             throw new IllegalArgumentException( "Unsupported XPATH syntax: " + xpath );
         }
+
+        m_parentNodes = xpathParser.group( 1 ).split( "/" );
+        m_pivotNode = xpathParser.group( 2 );
+
+        // split into tests and binary operators
+        String[] testClauses = WHITESPACE_PATTERN.split( xpathParser.group( 3 ) );
+        int numTests = ( testClauses.length + 1 ) / 2;
+
+        m_testNodes = new String[numTests];
+        m_testValues = new String[numTests];
+        m_placeholders = new boolean[numTests];
+        m_conjunctions = new boolean[numTests];
+
+        int numPlaceholders = 0;
+        for( int i = 0; i < numTests; i++ )
+        {
+            // parse test clause (at every even index)
+            Matcher matcher = TEST_PATTERN.matcher( testClauses[2 * i] );
+            matcher.matches();
+
+            m_testNodes[i] = matcher.group( 1 );
+            m_testValues[i] = matcher.group( 2 );
+            if( null != matcher.group( 3 ) )
+            {
+                m_placeholders[i] = true;
+                numPlaceholders++;
+            }
+
+            m_conjunctions[i] = i > 0 && "and".equals( testClauses[2 * i - 1] );
+        }
+
+        m_numPlaceholders = numPlaceholders;
+        m_bound = 0 == numPlaceholders;
+    }
+
+    /**
+     * @param query parsed query
+     * @param values values for the placeholders, in order
+     */
+    private XppPathQuery( XppPathQuery query, String[] values )
+    {
+        if( values.length != query.m_numPlaceholders )
+        {
+            throw new IllegalArgumentException( "Expected " + query.m_numPlaceholders + " values, got "
+                + values.length );
+        }
+
+        // share the parsed expression
+        m_parentNodes = query.m_parentNodes;
+        m_pivotNode = query.m_pivotNode;
+        m_testNodes = query.m_testNodes;
+        m_placeholders = query.m_placeholders;
+        m_conjunctions = query.m_conjunctions;
+        m_numPlaceholders = query.m_numPlaceholders;
+
+        m_testValues = (String[]) query.m_testValues.clone();
+        for( int i = 0, n = 0; i < m_testValues.length; i++ )
+        {
+            if( m_placeholders[i] )
+            {
+                m_testValues[i] = values[n++];
+            }
+        }
+
+        m_bound = true;
+    }
+
+    /**
+     * Get a parsed XPATH query, re-using recently parsed queries with the same expression
+     * 
+     * @param xpath simple XPATH query
+     * @return the parsed query
+     * @throws IllegalArgumentException
+     */
+    public static XppPathQuery compile( String xpath )
+        throws IllegalArgumentException
+    {
+        synchronized( QUERY_CACHE )
+        {
+            XppPathQuery query = (XppPathQuery) QUERY_CACHE.get( xpath );
+            if( null == query )
+            {
+                query = new XppPathQuery( xpath );
+                QUERY_CACHE.put( xpath, query );
+            }
+            return query;
+        }
+    }
+
+    /**
+     * Supply values for the placeholders in this query
+     * 
+     * @param values values for the placeholders, in order
+     * @return new query with the given values
+     */
+    public XppPathQuery bind( String[] values )
+    {
+        return new XppPathQuery( this, values );
+    }
+
+    /**
+     * @param value value for the single placeholder in this query
+     * @return new query with the given value
+     */
+    public XppPathQuery bind( String value )
+    {
+        return bind( new String[]
+        {
+            value
+        } );
+    }
+
+    /**
+     * @param value1 value for the first placeholder in this query
+     * @param value2 value for the second placeholder in this query
+     * @return new query with the given values
+     */
+    public XppPathQuery bind( String value1, String value2 )
+    {
+        return bind( new String[]
+        {
+            value1, value2
+        } );
     }
 
     /**
@@ -91,12 +278,10 @@ public class XppPathQuery
      */
     public Xpp3Dom queryParent( Xpp3Dom dom )
     {
-        String[] nodes = m_xpathParser.group( 1 ).split( "/" );
-
         Xpp3Dom parent = dom;
-        for( int i = 0; parent != null && i < nodes.length; i++ )
+        for( int i = 0; parent != null && i < m_parentNodes.length; i++ )
         {
-            parent = parent.getChild( nodes[i] );
+            parent = parent.getChild( m_parentNodes[i] );
         }
 
         return parent;
@@ -110,73 +295,61 @@ public class XppPathQuery
      */
     public int[] queryChildren( Xpp3Dom parent )
     {
-        String pivotNode = m_xpathParser.group( 2 );
-
-        // split into tests and binary operators
-        Pattern testPattern = Pattern.compile( TEST );
-        String[] testClauses = m_xpathParser.group( 3 ).split( "\\s+" );
+        if( !m_bound )
+        {
+            throw new IllegalStateException( "XPATH query has unbound values" );
+        }
 
-        List children = new ArrayList( Arrays.asList( parent.getChildren() ) );
+        Xpp3Dom[] children = parent.getChildren();
 
-        Set results = new HashSet();
-        for( int i = -1; i < testClauses.length; i += 2 )
+        // evaluate the whole predicate for each child in turn, so matches come out in document order
+        int[] matches = new int[children.length];
+        int n = 0;
+        for( int k = 0; k < children.length; k++ )
         {
-            // parse test clause (at every even index)
-            Matcher matcher = testPattern.matcher( testClauses[i + 1] );
-            matcher.matches();
-
-            Set selection = filter( children, pivotNode, matcher.group( 1 ), matcher.group( 2 ) );
+            Xpp3Dom node = children[k];
+            if( !m_pivotNode.equals( node.getName() ) )
+            {
+                continue;
+            }
 
-            if( i > 0 && "and".equals( testClauses[i] ) )
+            boolean result = false;
+            for( int i = 0; i < m_testNodes.length; i++ )
             {
-                // and == intersect
-                results.retainAll( selection );
+                // and == intersect, or == union (skip tests that can't change the result)
+                if( m_conjunctions[i] ? result : !result )
+                {
+                    result = test( node, m_testNodes[i], m_testValues[i] );
+                }
             }
-            else
+
+            if( result )
             {
-                // or == union
-                results.addAll( selection );
+                matches[n++] = k;
             }
         }
 
-        int[] indices = new int[results.size()];
-
-        int n = 0;
-        for( Iterator i = results.iterator(); i.hasNext(); )
-        {
-            indices[n++] = children.indexOf( i.next() );
-        }
+        int[] indices = new int[n];
+        System.arraycopy( matches, 0, indices, 0, n );
 
         return indices;
     }
 
     /**
-     * @param children complete list of child nodes
-     * @param pivotNode pivot node
+     * @param node child node
      * @param testNode test node
-     * @param testValue test value
-     * @return matching child nodes
+     * @param testValue test value, null matches nothing
+     * @return true if the child node passes the test
      */
-    private Set filter( List children, String pivotNode, String testNode, String testValue )
+    private static boolean test( Xpp3Dom node, String testNode, String testValue )
     {
-        Set results = new HashSet();
+        Xpp3Dom test = node;
 
-        for( Iterator i = children.iterator(); i.hasNext(); )
+        if( !testNode.startsWith( "." ) )
         {
-            Xpp3Dom node = (Xpp3Dom) i.next();
-            Xpp3Dom test = node;
-
-            if( !testNode.startsWith( "." ) )
-            {
-                test = node.getChild( testNode );
-            }
-
-            if( pivotNode.equals( node.getName() ) && test != null && testValue.equals( test.getValue() ) )
-            {
-                results.add( node );
-            }
+            test = node.getChild( testNode );
         }
 
-        return results;
+        return test != null && null != testValue && testValue.equals( test.getValue() );
     }
 }
@@ -19,20 +19,30 @@ package org.ops4j.pax.construct.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.maven.model.Dependency;
 import org.apache.maven.model.Model;
 import org.apache.maven.model.Repository;
 import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.IOUtil;
 import org.codehaus.plexus.util.xml.Xpp3Dom;
 import org.codehaus.plexus.util.xml.Xpp3DomBuilder;
+import org.codehaus.plexus.util.xml.pull.MXParser;
 import org.codehaus.plexus.util.xml.pull.XmlPullParser;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
 import org.codehaus.plexus.util.xml.pull.XmlSerializer;
@@ -51,10 +61,97 @@ public class XppPom
     private final File m_file;
 
     /**
-     * Current XML document
+     * Current XML document, null until the POM is first edited
      */
     private Xpp3Dom m_pom;
 
+    /**
+     * Original XML text, used to write back only what has changed, null once the document is dropped
+     */
+    private String m_text;
+
+    /**
+     * XML encoding detected when the document was read, null for new documents
+     */
+    private String m_encoding;
+
+    /**
+     * Sections which may reference other artifacts, see {@link #getReferences()}
+     */
+    static final String[] REFERENCE_SECTIONS =
+    {
+        "dependencies", "dependencyManagement", "exclusions"
+    };
+
+    /**
+     * Query for a module by name
+     */
+    private static final XppPathQuery MODULE_QUERY = XppPathQuery.compile( "modules/module[.=?]" );
+
+    /**
+     * Query for a dependency exclusion by groupId and artifactId
+     */
+    private static final XppPathQuery EXCLUSION_QUERY =
+        XppPathQuery.compile( "dependencies/dependency/exclusions/exclusion[groupId=? and artifactId=?]" );
+
+    /**
+     * Query for a managed dependency exclusion by groupId and artifactId
+     */
+    private static final XppPathQuery MANAGED_EXCLUSION_QUERY =
+        XppPathQuery.compile( "dependencyManagement/dependencies/dependency/exclusions/exclusion"
+            + "[groupId=? and artifactId=?]" );
+
+    /**
+     * Query for a build plugin by groupId and artifactId
+     */
+    private static final XppPathQuery PLUGIN_QUERY =
+        XppPathQuery.compile( "build/plugins/plugin[groupId=? and artifactId=?]" );
+
+    /**
+     * Query for a managed build plugin by groupId and artifactId
+     */
+    private static final XppPathQuery MANAGED_PLUGIN_QUERY =
+        XppPathQuery.compile( "build/pluginManagement/plugins/plugin[groupId=? and artifactId=?]" );
+
+    /**
+     * Query for the build plugins which are kept exactly as they were in the original Pax-Construct v2 POMs
+     */
+    private static final XppPathQuery PAX_PLUGINS_QUERY =
+        XppPathQuery.compile( "build/plugins/plugin"
+            + "[artifactId='maven-bundle-plugin' or artifactId='maven-pax-plugin']" );
+
+    /**
+     * Query for the managed build plugins which are kept exactly as they were in the original Pax-Construct v2 POMs
+     */
+    private static final XppPathQuery MANAGED_PAX_PLUGINS_QUERY =
+        XppPathQuery.compile( "build/pluginManagement/plugins/plugin"
+            + "[artifactId='maven-bundle-plugin' or artifactId='maven-pax-plugin']" );
+
+    /**
+     * Key project details, used for queries until the full XML document is needed
+     */
+    private Header m_header;
+
+    /**
+     * Cached project identity, cleared whenever it might change
+     */
+    private Identity m_identity;
+
+    /**
+     * Dependencies keyed by groupId:artifactId, built on demand
+     */
+    private DependencyIndex m_dependencies;
+
+    /**
+     * Managed dependencies keyed by groupId:artifactId, built on demand
+     */
+    private DependencyIndex m_managedDependencies;
+
+    /**
+     * True while there are edits which haven't been written back to the file
+     */
+    private volatile boolean m_dirty;
+
     /**
      * Read Maven project details from existing file
      * 
@@ -67,20 +164,8 @@ public class XppPom
         // protect against changes in working directory
         m_file = DirUtils.resolveFile( pomFile, true );
 
-        try
-        {
-            XmlPullParser parser = RoundTripXml.createParser();
-            Reader reader = StreamFactory.newXmlReader( m_file );
-            parser.setInput( reader );
-
-            m_pom = Xpp3DomBuilder.build( parser, false );
-
-            IOUtil.close( reader );
-        }
-        catch( XmlPullParserException e )
-        {
-            throw new IOException( e.getLocalizedMessage() );
-        }
+        // defer building the full document
+        m_header = Header.read( m_file );
     }
 
     /**
@@ -112,13 +197,134 @@ public class XppPom
         m_file.getParentFile().mkdirs();
     }
 
+    /**
+     * Promote the lightweight header to a full XML document, needed before any edits
+     * 
+     * @return the current XML document
+     */
+    private synchronized Xpp3Dom getDom()
+    {
+        if( null == m_pom )
+        {
+            try
+            {
+                String text;
+                Reader reader = StreamFactory.newXmlReader( m_file );
+                try
+                {
+                    text = IOUtil.toString( reader );
+                    m_encoding = StreamFactory.getXmlEncoding( reader );
+                }
+                finally
+                {
+                    IOUtil.close( reader );
+                }
+
+                XmlPullParser parser = RoundTripXml.createParser();
+                parser.setInput( new StringReader( text ) );
+
+                m_pom = Xpp3DomBuilder.build( parser, false );
+                RoundTripXml.poolValues( m_pom );
+
+                m_text = text;
+
+                RoundTripXml.releaseParser( parser );
+            }
+            catch( XmlPullParserException e )
+            {
+                throw new IllegalStateException( "Unable to parse " + m_file + ": " + e.getLocalizedMessage() );
+            }
+            catch( IOException e )
+            {
+                throw new IllegalStateException( "Unable to read " + m_file + ": " + e.getLocalizedMessage() );
+            }
+
+            // document is now authoritative
+            m_header = null;
+        }
+
+        return m_pom;
+    }
+
     /**
      * {@inheritDoc}
      */
     public String getId()
     {
-        // follow the Maven standard...
-        return getGroupId() + ':' + getArtifactId() + ':' + getPackaging() + ':' + getVersion();
+        return getIdentity().m_id;
+    }
+
+    /**
+     * @return cached project identity
+     */
+    private Identity getIdentity()
+    {
+        Identity identity = m_identity;
+        if( null == identity )
+        {
+            identity = new Identity( getGroupId(), getArtifactId(), getPackaging(), getVersion() );
+            m_identity = identity;
+        }
+        return identity;
+    }
+
+    /**
+     * Record that the document is about to be edited, so the session cache won't hand it out until it's written
+     */
+    private void edited()
+    {
+        m_dirty = true;
+    }
+
+    /**
+     * @return true if there are edits which haven't been written back to the file, otherwise false
+     */
+    boolean isDirty()
+    {
+        return m_dirty;
+    }
+
+    /**
+     * Forget cached details after wholesale changes to the XML document
+     */
+    private void clearCaches()
+    {
+        m_identity = null;
+        m_dependencies = null;
+        m_managedDependencies = null;
+    }
+
+    /**
+     * @param managed true for the dependencyManagement section, false for the main dependencies section
+     * @return up-to-date index of the chosen dependencies section
+     */
+    private DependencyIndex getDependencyIndex( boolean managed )
+    {
+        Xpp3Dom section = getDom();
+        if( managed )
+        {
+            section = section.getChild( "dependencyManagement" );
+        }
+        if( null != section )
+        {
+            section = section.getChild( "dependencies" );
+        }
+
+        DependencyIndex index = managed ? m_managedDependencies : m_dependencies;
+        if( null == index || !index.isCurrent( section ) )
+        {
+            index = new DependencyIndex( section );
+            if( managed )
+            {
+                m_managedDependencies = index;
+            }
+            else
+            {
+                m_dependencies = index;
+            }
+        }
+
+        return index;
     }
 
     /**
@@ -126,7 +332,13 @@ public class XppPom
      */
     public String getParentId()
     {
-        Xpp3Dom parent = m_pom.getChild( "parent" );
+        Header header = m_header;
+        if( null != header )
+        {
+            return header.getParentId();
+        }
+
+        Xpp3Dom parent = getDom().getChild( "parent" );
         if( null == parent )
         {
             return null;
@@ -145,8 +357,15 @@ public class XppPom
      */
     public String getGroupId()
     {
-        Xpp3Dom groupId = m_pom.getChild( "groupId" );
-        Xpp3Dom parent = m_pom.getChild( "parent" );
+        Header header = m_header;
+        if( null != header )
+        {
+            return header.getGroupId();
+        }
+
+        Xpp3Dom pom = getDom();
+        Xpp3Dom groupId = pom.getChild( "groupId" );
+        Xpp3Dom parent = pom.getChild( "parent" );
         if( null == groupId && null != parent )
         {
             // inherit group from parent element
@@ -164,7 +383,13 @@ public class XppPom
      */
     public String getArtifactId()
     {
-        return m_pom.getChild( "artifactId" ).getValue();
+        Header header = m_header;
+        if( null != header )
+        {
+            return header.m_artifactId;
+        }
+
+        return getDom().getChild( "artifactId" ).getValue();
     }
 
     /**
@@ -172,8 +397,15 @@ public class XppPom
      */
     public String getVersion()
     {
-        Xpp3Dom version = m_pom.getChild( "version" );
-        Xpp3Dom parent = m_pom.getChild( "parent" );
+        Header header = m_header;
+        if( null != header )
+        {
+            return header.getVersion();
+        }
+
+        Xpp3Dom pom = getDom();
+        Xpp3Dom version = pom.getChild( "version" );
+        Xpp3Dom parent = pom.getChild( "parent" );
         if( null == version && null != parent )
         {
             // inherit version from parent element
@@ -191,7 +423,13 @@ public class XppPom
      */
     public String getPackaging()
     {
-        Xpp3Dom packaging = m_pom.getChild( "packaging" );
+        Header header = m_header;
+        if( null != header )
+        {
+            return null == header.m_packaging ? "jar" : header.m_packaging;
+        }
+
+        Xpp3Dom packaging = getDom().getChild( "packaging" );
         if( null == packaging )
         {
             return "jar";
@@ -204,9 +442,15 @@ public class XppPom
      */
     public List getModuleNames()
     {
+        Header header = m_header;
+        if( null != header )
+        {
+            return new ArrayList( header.m_modules );
+        }
+
         List names = new ArrayList();
 
-        Xpp3Dom modules = m_pom.getChild( "modules" );
+        Xpp3Dom modules = getDom().getChild( "modules" );
         if( null != modules )
         {
             Xpp3Dom[] values = modules.getChildren( "module" );
@@ -292,7 +536,13 @@ public class XppPom
      */
     public String getBundleSymbolicName()
     {
-        Xpp3Dom properties = m_pom.getChild( "properties" );
+        Header header = m_header;
+        if( null != header )
+        {
+            return header.m_symbolicName;
+        }
+
+        Xpp3Dom properties = getDom().getChild( "properties" );
         if( null != properties )
         {
             Xpp3Dom symbolicName = properties.getChild( "bundle.symbolicName" );
@@ -304,6 +554,79 @@ public class XppPom
         return null;
     }
 
+    /**
+     * Find the artifacts referenced by this project, collected in the same pass as the key project details when the
+     * full XML document isn't loaded
+     * 
+     * @return map of section name to the set of groupId:artifactId keys referenced in that section
+     */
+    synchronized Map getReferences()
+    {
+        if( null == m_pom )
+        {
+            return m_header.m_references;
+        }
+
+        Map references = Header.newReferences();
+
+        addReferences( references, getDom().getChild( "dependencies" ), "dependencies" );
+        Xpp3Dom dependencyManagement = getDom().getChild( "dependencyManagement" );
+        if( null != dependencyManagement )
+        {
+            addReferences( references, dependencyManagement.getChild( "dependencies" ), "dependencyManagement" );
+        }
+
+        return references;
+    }
+
+    /**
+     * @param references map of section name to referenced keys
+     * @param dependencies list of dependency elements, may be null
+     * @param section name of the section containing the dependencies
+     */
+    private static void addReferences( Map references, Xpp3Dom dependencies, String section )
+    {
+        if( null == dependencies )
+        {
+            return;
+        }
+
+        Xpp3Dom[] dependency = dependencies.getChildren( "dependency" );
+        for( int i = 0; i < dependency.length; i++ )
+        {
+            String groupId = getChildValue( dependency[i], "groupId" );
+            String artifactId = getChildValue( dependency[i], "artifactId" );
+            Header.addReference( references, section, groupId, artifactId );
+
+            Xpp3Dom exclusions = dependency[i].getChild( "exclusions" );
+            if( null != exclusions )
+            {
+                Xpp3Dom[] exclusion = exclusions.getChildren( "exclusion" );
+                for( int j = 0; j < exclusion.length; j++ )
+                {
+                    groupId = getChildValue( exclusion[j], "groupId" );
+                    artifactId = getChildValue( exclusion[j], "artifactId" );
+                    Header.addReference( references, "exclusions", groupId, artifactId );
+                }
+            }
+        }
+    }
+
+    /**
+     * @param node XML element
+     * @param name name of child element
+     * @return value of the child element, null if it doesn't exist
+     */
+    private static String getChildValue( Xpp3Dom node, String name )
+    {
+        Xpp3Dom child = node.getChild( name );
+        if( null == child )
+        {
+            return null;
+        }
+        return child.getValue();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -325,7 +648,9 @@ public class XppPom
     public void setParent( MavenProject project, String relativePath, boolean overwrite )
         throws ExistingElementException
     {
-        if( m_pom.getChild( "parent" ) != null && !overwrite )
+        edited();
+
+        if( getDom().getChild( "parent" ) != null && !overwrite )
         {
             throw new ExistingElementException( "parent" );
         }
@@ -339,7 +664,8 @@ public class XppPom
         Xpp3Dom newPom = new Xpp3Dom( "project" );
         newPom.addChild( parent );
 
-        m_pom = Xpp3DomHelper.mergeXpp3Dom( newPom, m_pom );
+        m_pom = Xpp3DomHelper.mergeXpp3Dom( newPom, getDom() );
+        clearCaches();
     }
 
     /**
@@ -347,13 +673,16 @@ public class XppPom
      */
     public void setGroupId( String newGroupId )
     {
-        Xpp3Dom groupId = m_pom.getChild( "groupId" );
+        edited();
+
+        Xpp3Dom groupId = getDom().getChild( "groupId" );
         if( null == groupId )
         {
             groupId = new Xpp3Dom( "groupId" );
-            m_pom.addChild( groupId );
+            getDom().addChild( groupId );
         }
         groupId.setValue( newGroupId );
+        m_identity = null;
     }
 
     /**
@@ -361,13 +690,16 @@ public class XppPom
      */
     public void setVersion( String newVersion )
     {
-        Xpp3Dom version = m_pom.getChild( "version" );
+        edited();
+
+        Xpp3Dom version = getDom().getChild( "version" );
         if( null == version )
         {
             version = new Xpp3Dom( "version" );
-            m_pom.addChild( version );
+            getDom().addChild( version );
         }
         version.setValue( newVersion );
+        m_identity = null;
     }
 
     /**
@@ -377,6 +709,8 @@ public class XppPom
         boolean pluginRepo )
         throws ExistingElementException
     {
+        edited();
+
         final String listName;
         final String elemName;
 
@@ -394,10 +728,10 @@ public class XppPom
         String id = repository.getId();
         String url = repository.getUrl();
 
-        String xpath = listName + '/' + elemName + "[id='" + id + "' or url='" + url + "']";
+        XppPathQuery query = XppPathQuery.compile( listName + '/' + elemName + "[id=? or url=?]" ).bind( id, url );
 
         // clear old elements when overwriting
-        if( findChildren( xpath, overwrite ) && !overwrite )
+        if( findChildren( query, overwrite ) && !overwrite )
         {
             throw new ExistingElementException( elemName );
         }
@@ -426,7 +760,7 @@ public class XppPom
         Xpp3Dom newPom = new Xpp3Dom( "project" );
         newPom.addChild( list );
 
-        Xpp3DomHelper.mergeXpp3Dom( m_pom, newPom );
+        Xpp3DomHelper.mergeXpp3Dom( getDom(), newPom );
     }
 
     /**
@@ -435,10 +769,10 @@ public class XppPom
     public void addModule( String module, boolean overwrite )
         throws ExistingElementException
     {
-        String xpath = "modules/module[.='" + module + "']";
+        edited();
 
         // clear old elements when overwriting
-        if( findChildren( xpath, overwrite ) && !overwrite )
+        if( findChildren( MODULE_QUERY.bind( module ), overwrite ) && !overwrite )
         {
             throw new ExistingElementException( "module" );
         }
@@ -452,7 +786,7 @@ public class XppPom
         Xpp3Dom newPom = new Xpp3Dom( "project" );
         newPom.addChild( list );
 
-        Xpp3DomHelper.mergeXpp3Dom( m_pom, newPom );
+        Xpp3DomHelper.mergeXpp3Dom( getDom(), newPom );
     }
 
     /**
@@ -460,9 +794,8 @@ public class XppPom
      */
     public boolean removeModule( String module )
     {
-        String xpath = "modules/module[.='" + module + "']";
-
-        return findChildren( xpath, true );
+        edited();
+        return findChildren( MODULE_QUERY.bind( module ), true );
     }
 
     /**
@@ -471,20 +804,75 @@ public class XppPom
     public void addDependency( Dependency dependency, boolean overwrite )
         throws ExistingElementException
     {
-        String groupId = dependency.getGroupId();
-        String artifactId = dependency.getArtifactId();
+        addDependencies( Collections.singletonList( dependency ), overwrite );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addDependencies( Collection dependencies, boolean overwrite )
+        throws ExistingElementException
+    {
+        edited();
 
-        String xpath = "dependencies/dependency[groupId='" + groupId + "' and artifactId='" + artifactId + "']";
+        DependencyIndex index = getDependencyIndex( false );
 
-        // clear old elements when overwriting
-        if( findChildren( xpath, overwrite ) && !overwrite )
+        // check for conflicts before changing anything, later entries replace earlier ones
+        Map newDependencies = new LinkedHashMap();
+        for( Iterator i = dependencies.iterator(); i.hasNext(); )
+        {
+            Dependency dependency = (Dependency) i.next();
+            String key = dependency.getGroupId() + ':' + dependency.getArtifactId();
+
+            boolean exists = null != newDependencies.remove( key );
+            if( !exists )
+            {
+                exists = !index.find( dependency.getGroupId(), dependency.getArtifactId() ).isEmpty();
+            }
+
+            if( exists && !overwrite )
+            {
+                throw new ExistingElementException( "dependency" );
+            }
+
+            newDependencies.put( key, dependency );
+        }
+
+        if( newDependencies.isEmpty() )
+        {
+            return;
+        }
+
+        Xpp3Dom list = new Xpp3DomList( "dependencies" );
+        for( Iterator i = newDependencies.values().iterator(); i.hasNext(); )
         {
-            throw new ExistingElementException( "dependency" );
+            Dependency dependency = (Dependency) i.next();
+
+            // clear old elements when overwriting
+            index.removeAll( index.find( dependency.getGroupId(), dependency.getArtifactId() ) );
+
+            list.addChild( createDependency( dependency ) );
         }
 
+        Xpp3Dom newPom = new Xpp3Dom( "project" );
+        newPom.addChild( list );
+
+        // single merge for the whole batch
+        Xpp3DomHelper.mergeXpp3Dom( getDom(), newPom );
+
+        // merge appends copies, index them unless the whole section is new
+        index.appended();
+    }
+
+    /**
+     * @param dependency project dependency
+     * @return XML fragment describing the dependency
+     */
+    private static Xpp3Dom createDependency( Dependency dependency )
+    {
         Xpp3DomMap dep = new Xpp3DomMap( "dependency" );
-        dep.putValue( "groupId", groupId );
-        dep.putValue( "artifactId", artifactId );
+        dep.putValue( "groupId", dependency.getGroupId() );
+        dep.putValue( "artifactId", dependency.getArtifactId() );
         dep.putValue( "version", dependency.getVersion() );
         dep.putValue( "scope", dependency.getScope() );
 
@@ -500,13 +888,7 @@ public class XppPom
             dep.putValue( "optional", "true" );
         }
 
-        Xpp3Dom list = new Xpp3DomList( "dependencies" );
-        list.addChild( dep );
-
-        Xpp3Dom newPom = new Xpp3Dom( "project" );
-        newPom.addChild( list );
-
-        Xpp3DomHelper.mergeXpp3Dom( m_pom, newPom );
+        return dep;
     }
 
     /**
@@ -514,55 +896,27 @@ public class XppPom
      */
     public boolean updateDependencyGroup( Dependency dependency, String newGroupId )
     {
+        edited();
+
         String groupId = dependency.getGroupId();
         String artifactId = dependency.getArtifactId();
 
         boolean updated = false;
 
-        String xpath1 = "dependencies/dependency[groupId='" + groupId + "' and artifactId='" + artifactId + "']";
-        updated = updateGroupId( xpath1, newGroupId ) || updated;
-
-        String xpath2 = "dependencyManagement/" + xpath1;
-        updated = updateGroupId( xpath2, newGroupId ) || updated;
+        updated = getDependencyIndex( false ).updateGroupId( groupId, artifactId, newGroupId ) || updated;
+        updated = getDependencyIndex( true ).updateGroupId( groupId, artifactId, newGroupId ) || updated;
 
         return updated;
     }
 
     /**
-     * @param xpath simple XPATH query
-     * @param newGroupId new group id
-     * @return true if any elements were updated, otherwise false
-     */
-    private boolean updateGroupId( String xpath, String newGroupId )
-    {
-        XppPathQuery pathQuery = new XppPathQuery( xpath );
-        Xpp3Dom parent = pathQuery.queryParent( m_pom );
-        if( null == parent )
-        {
-            return false;
-        }
-
-        int[] children = pathQuery.queryChildren( parent );
-        for( int i = 0; i < children.length; i++ )
-        {
-            Xpp3Dom group = parent.getChild( children[i] ).getChild( "groupId" );
-            if( null != group )
-            {
-                group.setValue( newGroupId );
-            }
-        }
-        return children.length > 0;
-    }
-
-    /**
-     * @param xpath simple XPATH query
+     * @param pathQuery simple XPATH query
      * @param newVersion new version
      * @return true if any elements were updated, otherwise false
      */
-    private boolean updateVersion( String xpath, String newVersion )
+    private boolean updateVersion( XppPathQuery pathQuery, String newVersion )
     {
-        XppPathQuery pathQuery = new XppPathQuery( xpath );
-        Xpp3Dom parent = pathQuery.queryParent( m_pom );
+        Xpp3Dom parent = pathQuery.queryParent( getDom() );
         if( null == parent )
         {
             return false;
@@ -588,16 +942,18 @@ public class XppPom
      */
     public boolean removeDependency( Dependency dependency )
     {
+        edited();
+
         String groupId = dependency.getGroupId();
         String artifactId = dependency.getArtifactId();
 
         boolean updated = false;
 
-        String xpath1 = "dependencies/dependency[groupId='" + groupId + "' and artifactId='" + artifactId + "']";
-        updated = findChildren( xpath1, true ) || updated;
+        DependencyIndex index = getDependencyIndex( false );
+        updated = index.removeAll( index.find( groupId, artifactId ) ) || updated;
 
-        String xpath2 = "dependencyManagement/" + xpath1;
-        updated = findChildren( xpath2, true ) || updated;
+        DependencyIndex managedIndex = getDependencyIndex( true );
+        updated = managedIndex.removeAll( managedIndex.find( groupId, artifactId ) ) || updated;
 
         return updated;
     }
@@ -608,17 +964,16 @@ public class XppPom
     public void addExclusion( String groupId, String artifactId, boolean overwrite )
         throws ExistingElementException
     {
-        Xpp3Dom dependencies = m_pom.getChild( "dependencies" );
+        edited();
+
+        Xpp3Dom dependencies = getDom().getChild( "dependencies" );
         if( null == dependencies || dependencies.getChildCount() <= 0 )
         {
             return; // can't exclude what isn't there!
         }
 
-        String exclusionPath = "dependencies/dependency/exclusions/exclusion";
-        String xpath = exclusionPath + "[groupId='" + groupId + "' and artifactId='" + artifactId + "']";
-
         // clear old elements when overwriting
-        if( findChildren( xpath, overwrite ) && !overwrite )
+        if( findChildren( EXCLUSION_QUERY.bind( groupId, artifactId ), overwrite ) && !overwrite )
         {
             throw new ExistingElementException( "exclusion" );
         }
@@ -642,15 +997,12 @@ public class XppPom
      */
     public boolean removeExclusion( String groupId, String artifactId )
     {
-        boolean updated = false;
+        edited();
 
-        String exclusionPath = "dependencies/dependency/exclusions/exclusion";
-
-        String xpath1 = exclusionPath + "[groupId='" + groupId + "' and artifactId='" + artifactId + "']";
-        updated = findChildren( xpath1, true ) || updated;
+        boolean updated = false;
 
-        String xpath2 = "dependencyManagement/" + xpath1;
-        updated = findChildren( xpath2, true ) || updated;
+        updated = findChildren( EXCLUSION_QUERY.bind( groupId, artifactId ), true ) || updated;
+        updated = findChildren( MANAGED_EXCLUSION_QUERY.bind( groupId, artifactId ), true ) || updated;
 
         return updated;
     }
@@ -662,7 +1014,7 @@ public class XppPom
     {
         Properties properties = new Properties();
 
-        Xpp3Dom map = m_pom.getChild( "properties" );
+        Xpp3Dom map = getDom().getChild( "properties" );
         if( null != map )
         {
             Xpp3Dom[] entries = map.getChildren();
@@ -680,11 +1032,13 @@ public class XppPom
      */
     public void setProperty( String key, String value )
     {
-        Xpp3Dom map = m_pom.getChild( "properties" );
+        edited();
+
+        Xpp3Dom map = getDom().getChild( "properties" );
         if( null == map )
         {
             map = new Xpp3Dom( "properties" );
-            m_pom.addChild( map );
+            getDom().addChild( map );
         }
 
         Xpp3Dom entry = new Xpp3Dom( key );
@@ -698,12 +1052,12 @@ public class XppPom
      */
     public boolean updatePluginVersion( String groupId, String artifactId, String newVersion )
     {
-        boolean updated = false;
+        edited();
 
-        String plugins = "plugins/plugin[groupId='" + groupId + "' and artifactId='" + artifactId + "']";
+        boolean updated = false;
 
-        updated = updateVersion( "build/" + plugins, newVersion ) || updated;
-        updated = updateVersion( "build/pluginManagement/" + plugins, newVersion ) || updated;
+        updated = updateVersion( PLUGIN_QUERY.bind( groupId, artifactId ), newVersion ) || updated;
+        updated = updateVersion( MANAGED_PLUGIN_QUERY.bind( groupId, artifactId ), newVersion ) || updated;
 
         return updated;
     }
@@ -718,40 +1072,104 @@ public class XppPom
             throw new IllegalArgumentException( "Unable to merge POM type " + pom.getClass() );
         }
 
-        mergeSection( ( (XppPom) pom ).m_pom, fromSection, toSection, append );
+        edited();
+
+        mergeSection( ( (XppPom) pom ).getDom(), fromSection, toSection, append, false );
     }
 
     /**
-     * Merge a section of XML from another XML fragment
-     * 
-     * @param from another XML fragment
-     * @param fromSection path to XML section to merge from
-     * @param toSection path to XML section to merge into
-     * @param append when true, append instead of merging
+     * {@inheritDoc}
      */
-    private void mergeSection( Xpp3Dom from, String fromSection, String toSection, boolean append )
+    public void moveSection( Pom pom, String fromSection, String toSection, boolean append )
     {
-        String[] fromPath = fromSection.split( "/" );
-
-        // find source section
-        Xpp3Dom source = from;
-        for( int i = 0; i < fromPath.length; i++ )
+        if( !( pom instanceof XppPom ) )
         {
-            source = source.getChild( fromPath[i] );
-            if( null == source )
-            {
-                return;
-            }
+            throw new IllegalArgumentException( "Unable to move from POM type " + pom.getClass() );
         }
 
-        if( append )
+        edited();
+
+        if( this == pom )
         {
-            Xpp3DomList.makeIntoList( source );
+            // can't take a section from ourselves
+            mergeSection( getDom(), fromSection, toSection, append, false );
+            return;
         }
 
-        Xpp3Dom project = new Xpp3Dom( "project" );
+        XppPom other = (XppPom) pom;
+        synchronized( other )
+        {
+            // the other project loses the section, so it has unsaved edits too
+            other.edited();
 
-        // create skeleton template
+            Xpp3Dom section = findSection( other.getDom(), fromSection );
+            if( null != section )
+            {
+                // detach the section so it only belongs to this project
+                int slash = fromSection.lastIndexOf( '/' );
+                Xpp3Dom parent = findSection( other.getDom(), slash > 0 ? fromSection.substring( 0, slash ) : "" );
+                for( int i = parent.getChildCount() - 1; i >= 0; i-- )
+                {
+                    if( parent.getChild( i ) == section )
+                    {
+                        parent.removeChild( i );
+                        break;
+                    }
+                }
+                other.clearCaches();
+
+                Xpp3Dom holder = new Xpp3Dom( "holder" );
+                holder.addChild( section );
+                mergeSection( holder, section.getName(), toSection, append, true );
+            }
+        }
+    }
+
+    /**
+     * @param from XML fragment
+     * @param path path to XML section, the empty path means the fragment itself
+     * @return the XML section, null if it doesn't exist
+     */
+    private static Xpp3Dom findSection( Xpp3Dom from, String path )
+    {
+        Xpp3Dom section = from;
+        if( path.length() > 0 )
+        {
+            String[] names = path.split( "/" );
+            for( int i = 0; i < names.length && null != section; i++ )
+            {
+                section = section.getChild( names[i] );
+            }
+        }
+        return section;
+    }
+
+    /**
+     * Merge a section of XML from another XML fragment
+     * 
+     * @param from another XML fragment
+     * @param fromSection path to XML section to merge from
+     * @param toSection path to XML section to merge into
+     * @param append when true, append instead of merging
+     * @param move when true, the fragment is no longer needed so its elements can be moved instead of copied
+     */
+    private void mergeSection( Xpp3Dom from, String fromSection, String toSection, boolean append, boolean move )
+    {
+        // find source section
+        Xpp3Dom source = findSection( from, fromSection );
+        if( null == source )
+        {
+            return;
+        }
+
+        if( append )
+        {
+            Xpp3DomList.makeIntoList( source );
+        }
+
+        Xpp3Dom project = new Xpp3Dom( "project" );
+
+        // create skeleton template
         Xpp3Dom skeleton = project;
         if( toSection != null )
         {
@@ -767,7 +1185,15 @@ public class XppPom
         // add source to template
         skeleton.addChild( source );
 
-        m_pom = Xpp3DomHelper.mergeXpp3Dom( m_pom, project );
+        if( move )
+        {
+            m_pom = Xpp3DomHelper.moveIntoXpp3Dom( getDom(), project );
+        }
+        else
+        {
+            m_pom = Xpp3DomHelper.mergeXpp3Dom( getDom(), project );
+        }
+        clearCaches();
     }
 
     /**
@@ -780,7 +1206,9 @@ public class XppPom
             throw new IllegalArgumentException( "Unable to overlay POM type " + pom.getClass() );
         }
 
-        Xpp3Dom overlay = ( (XppPom) pom ).m_pom;
+        edited();
+
+        Xpp3Dom overlay = ( (XppPom) pom ).getDom();
         Xpp3Dom project = new Xpp3Dom( "project" );
 
         // record before we drop any elements
@@ -788,8 +1216,10 @@ public class XppPom
 
         // avoid corruption of key elements
         removeProtectedElements( overlay );
+        ( (XppPom) pom ).edited();
+        ( (XppPom) pom ).clearCaches();
 
-        Xpp3Dom[] sections = m_pom.getChildren();
+        Xpp3Dom[] sections = getDom().getChildren();
         for( int i = 0; i < sections.length; i++ )
         {
             // provide basic XML framework underneath the overlay
@@ -799,20 +1229,36 @@ public class XppPom
             }
         }
 
-        Xpp3Dom originalPom = new Xpp3Dom( m_pom );
+        // only these original sections are merged back, and only those shared with the new project can change
+        Xpp3Dom originalPom = new Xpp3Dom( "project" );
+        for( int i = 0; i < sections.length; i++ )
+        {
+            String name = sections[i].getName();
+            if( "build".equals( name ) || "properties".equals( name ) )
+            {
+                if( null == overlay.getChild( name ) )
+                {
+                    originalPom.addChild( new Xpp3Dom( sections[i] ) );
+                }
+                else
+                {
+                    originalPom.addChild( sections[i] );
+                }
+            }
+        }
+
         m_pom = Xpp3DomHelper.mergeXpp3Dom( project, overlay );
+        clearCaches();
 
         // we want to keep these plugins exactly as they were in the original Pax-Construct v2 POMs
-        String plugins = "plugins/plugin[artifactId='maven-bundle-plugin' or artifactId='maven-pax-plugin']";
-
-        findChildren( "build/" + plugins, true );
-        mergeSection( originalPom, "build/plugins", "build", true );
+        findChildren( PAX_PLUGINS_QUERY, true );
+        mergeSection( originalPom, "build/plugins", "build", true, true );
 
-        findChildren( "build/pluginManagement/" + plugins, true );
-        mergeSection( originalPom, "build/pluginManagement/plugins", "build/pluginManagement", true );
+        findChildren( MANAGED_PAX_PLUGINS_QUERY, true );
+        mergeSection( originalPom, "build/pluginManagement/plugins", "build/pluginManagement", true, true );
 
         // merge properties - customized values take precedence
-        mergeSection( originalPom, "properties", null, false );
+        mergeSection( originalPom, "properties", null, false, true );
 
         // new modules go below existing infrastructure entries
         for( Iterator i = newModules.iterator(); i.hasNext(); )
@@ -849,20 +1295,813 @@ public class XppPom
     /**
      * {@inheritDoc}
      */
-    public void write()
+    public boolean write()
         throws IOException
     {
-        String encoding = StreamFactory.getXmlEncoding( m_file );
-        Writer writer = StreamFactory.newXmlWriter( m_file );
+        try
+        {
+            File tempFile = writeTempFile();
+            if( null == tempFile )
+            {
+                return false;
+            }
 
-        XmlSerializer serializer = RoundTripXml.createSerializer();
+            replaceFile( tempFile );
+            return true;
+        }
+        catch( IOException e )
+        {
+            // unsaved edits must not be handed out to later readers
+            PomUtils.evictPom( m_file );
+            throw e;
+        }
+    }
 
-        serializer.setOutput( writer );
-        serializer.startDocument( encoding, null );
-        m_pom.writeToSerializer( null, serializer );
-        serializer.endDocument();
+    /**
+     * Serialize the project to a temporary file next to the POM, leaving the current POM untouched
+     * 
+     * @return the temporary file, null if the POM is unchanged
+     * @throws IOException
+     */
+    File writeTempFile()
+        throws IOException
+    {
+        if( null == m_pom && m_file.exists() )
+        {
+            m_dirty = false;
+            return null; // document was never opened for editing
+        }
 
-        IOUtil.close( writer );
+        String patchedText = null;
+        XppSource source = null != m_text && m_file.exists() ? XppSource.parse( m_text ) : null;
+        if( null != source )
+        {
+            // splice edits into the original text, leaving the rest of the POM exactly as it was
+            patchedText = source.patch( getDom() );
+            if( patchedText.equals( m_text ) )
+            {
+                m_dirty = false;
+                return null;
+            }
+        }
+
+        File tempFile = File.createTempFile( "pom", ".tmp", m_file.getParentFile() );
+
+        Writer writer = null;
+        boolean written = false;
+        try
+        {
+            // size the buffer from the current POM, it usually ends up much the same
+            writer = StreamFactory.newXmlWriter( tempFile, m_file.length() );
+
+            if( null != patchedText )
+            {
+                // XML prolog is unchanged, so the writer picks the same encoding
+                writer.write( patchedText );
+            }
+            else
+            {
+                XmlSerializer serializer = RoundTripXml.createSerializer();
+
+                serializer.setOutput( writer );
+                serializer.startDocument( getEncoding(), null );
+                getDom().writeToSerializer( null, serializer );
+                serializer.endDocument();
+            }
+
+            writer.close();
+            written = true;
+        }
+        finally
+        {
+            if( !written )
+            {
+                IOUtil.close( writer );
+                tempFile.delete();
+            }
+        }
+
+        // avoid touching the file when the contents are the same, as that triggers needless rebuilds
+        if( m_file.exists() && FileUtils.contentEquals( tempFile, m_file ) )
+        {
+            tempFile.delete();
+            m_dirty = false;
+            return null;
+        }
+
+        return tempFile;
+    }
+
+    /**
+     * @return XML encoding of the POM, using the encoding found when it was read to avoid opening the file again
+     */
+    private String getEncoding()
+    {
+        if( null != m_encoding )
+        {
+            return m_encoding;
+        }
+
+        return StreamFactory.getXmlEncoding( m_file );
+    }
+
+    /**
+     * Atomically replace the POM with a previously written temporary file
+     * 
+     * @param tempFile temporary file from {@link #writeTempFile()}
+     * @throws IOException
+     */
+    void replaceFile( File tempFile )
+        throws IOException
+    {
+        DirUtils.replaceFile( tempFile, m_file );
+        m_dirty = false;
+
+        // drop the written document so cached POMs only hold their header, the next edit reads the file again
+        Header header = Header.read( m_file );
+        synchronized( this )
+        {
+            m_pom = null;
+            m_text = null;
+            m_header = header;
+        }
+        clearCaches();
+
+        // keep session cache and tree index in step with the file
+        PomUtils.cachePom( this );
+        PomIndex.changed( m_file );
+    }
+
+    /**
+     * Dependency elements of a single section keyed by groupId:artifactId, so edits don't have to scan every
+     * dependency. The index notices when the section has been replaced or resized behind its back and is then rebuilt.
+     */
+    private static final class DependencyIndex
+    {
+        /**
+         * Indexed dependencies element, null if the section doesn't exist
+         */
+        private final Xpp3Dom m_section;
+
+        /**
+         * Map of groupId:artifactId to the list of matching dependency elements
+         */
+        private final Map m_nodes;
+
+        /**
+         * Number of children in the section when last indexed
+         */
+        private int m_count;
+
+        /**
+         * @param section dependencies element, may be null
+         */
+        DependencyIndex( Xpp3Dom section )
+        {
+            m_section = section;
+            m_nodes = new HashMap();
+
+            if( null != section )
+            {
+                Xpp3Dom[] children = section.getChildren();
+                for( int i = 0; i < children.length; i++ )
+                {
+                    put( children[i] );
+                }
+                m_count = children.length;
+            }
+        }
+
+        /**
+         * @param section current dependencies element
+         * @return true if the index still matches the section, otherwise false
+         */
+        boolean isCurrent( Xpp3Dom section )
+        {
+            return section == m_section && ( null == section ? 0 : section.getChildCount() ) == m_count;
+        }
+
+        /**
+         * @param groupId dependency group id
+         * @param artifactId dependency artifact id
+         * @return matching dependency elements, empty if there are none
+         */
+        List find( String groupId, String artifactId )
+        {
+            List nodes = (List) m_nodes.get( groupId + ':' + artifactId );
+            if( null == nodes || null == groupId || null == artifactId )
+            {
+                return Collections.EMPTY_LIST;
+            }
+            return new ArrayList( nodes );
+        }
+
+        /**
+         * Index the dependency elements just appended to the section
+         */
+        void appended()
+        {
+            int count = null == m_section ? 0 : m_section.getChildCount();
+            for( ; m_count < count; m_count++ )
+            {
+                put( m_section.getChild( m_count ) );
+            }
+        }
+
+        /**
+         * @param nodes dependency elements to remove from the section
+         * @return true if any elements were removed, otherwise false
+         */
+        boolean removeAll( List nodes )
+        {
+            for( Iterator i = nodes.iterator(); i.hasNext(); )
+            {
+                Xpp3Dom node = (Xpp3Dom) i.next();
+
+                // search from the end, as recent additions are the most likely to be changed again
+                for( int n = m_section.getChildCount() - 1; n >= 0; n-- )
+                {
+                    if( m_section.getChild( n ) == node )
+                    {
+                        m_section.removeChild( n );
+                        m_count--;
+                        break;
+                    }
+                }
+
+                remove( node );
+            }
+
+            return !nodes.isEmpty();
+        }
+
+        /**
+         * @param groupId dependency group id
+         * @param artifactId dependency artifact id
+         * @param newGroupId new group id
+         * @return true if any elements were updated, otherwise false
+         */
+        boolean updateGroupId( String groupId, String artifactId, String newGroupId )
+        {
+            List nodes = find( groupId, artifactId );
+            for( Iterator i = nodes.iterator(); i.hasNext(); )
+            {
+                Xpp3Dom node = (Xpp3Dom) i.next();
+
+                remove( node );
+                node.getChild( "groupId" ).setValue( newGroupId );
+                put( node );
+            }
+
+            return !nodes.isEmpty();
+        }
+
+        /**
+         * @param node dependency element
+         */
+        private void put( Xpp3Dom node )
+        {
+            String key = getKey( node );
+            if( null != key )
+            {
+                List nodes = (List) m_nodes.get( key );
+                if( null == nodes )
+                {
+                    nodes = new ArrayList( 1 );
+                    m_nodes.put( key, nodes );
+                }
+                nodes.add( node );
+            }
+        }
+
+        /**
+         * @param node dependency element
+         */
+        private void remove( Xpp3Dom node )
+        {
+            String key = getKey( node );
+            if( null != key )
+            {
+                List nodes = (List) m_nodes.get( key );
+                for( int i = 0; null != nodes && i < nodes.size(); i++ )
+                {
+                    // compare identity, as Xpp3Dom equality is structural
+                    if( nodes.get( i ) == node )
+                    {
+                        nodes.remove( i );
+                        break;
+                    }
+                }
+                if( null != nodes && nodes.isEmpty() )
+                {
+                    m_nodes.remove( key );
+                }
+            }
+        }
+
+        /**
+         * @param node dependency element
+         * @return groupId:artifactId key, null if either is missing
+         */
+        private static String getKey( Xpp3Dom node )
+        {
+            String groupId = getChildValue( node, "groupId" );
+            String artifactId = getChildValue( node, "artifactId" );
+            if( null == groupId || null == artifactId )
+            {
+                return null;
+            }
+            return groupId + ':' + artifactId;
+        }
+    }
+
+    /**
+     * Immutable project identity, following the Maven standard of groupId:artifactId:packaging:version
+     */
+    private static final class Identity
+    {
+        /**
+         * Project group id
+         */
+        private final String m_groupId;
+
+        /**
+         * Project artifact id
+         */
+        private final String m_artifactId;
+
+        /**
+         * Project packaging
+         */
+        private final String m_packaging;
+
+        /**
+         * Project version
+         */
+        private final String m_version;
+
+        /**
+         * Unique project identifier
+         */
+        private final String m_id;
+
+        /**
+         * Hash of the unique project identifier
+         */
+        private final int m_hashCode;
+
+        /**
+         * @param groupId project group id
+         * @param artifactId project artifact id
+         * @param packaging project packaging
+         * @param version project version
+         */
+        Identity( String groupId, String artifactId, String packaging, String version )
+        {
+            m_groupId = groupId;
+            m_artifactId = artifactId;
+            m_packaging = packaging;
+            m_version = version;
+
+            m_id = groupId + ':' + artifactId + ':' + packaging + ':' + version;
+            m_hashCode = m_id.hashCode();
+        }
+
+        /**
+         * @param other another project identity
+         * @return true if both identities refer to the same project, otherwise false
+         */
+        boolean sameAs( Identity other )
+        {
+            return m_hashCode == other.m_hashCode && same( m_artifactId, other.m_artifactId )
+                && same( m_groupId, other.m_groupId ) && same( m_version, other.m_version )
+                && same( m_packaging, other.m_packaging );
+        }
+
+        /**
+         * @param lhs first value, may be null
+         * @param rhs second value, may be null
+         * @return true if the values are equal, otherwise false
+         */
+        private static boolean same( String lhs, String rhs )
+        {
+            return null == lhs ? null == rhs : lhs.equals( rhs );
+        }
+    }
+
+    /**
+     * Read-only view of the key project details, pulled from the file without building a full XML document. The rest
+     * of the document is still scanned, so a malformed POM is rejected when it's read rather than when it's first
+     * edited.
+     */
+    private static final class Header
+    {
+        /**
+         * Parser released by each thread, kept so its internal buffers can be reused for the next header
+         */
+        private static final ThreadLocal PARSER_POOL = new ThreadLocal();
+
+        /**
+         * Project group id, may be inherited
+         */
+        private String m_groupId;
+
+        /**
+         * Project artifact id
+         */
+        private String m_artifactId;
+
+        /**
+         * Project version, may be inherited
+         */
+        private String m_version;
+
+        /**
+         * Project packaging, null means default
+         */
+        private String m_packaging;
+
+        /**
+         * Bundle symbolic name property, may be null
+         */
+        private String m_symbolicName;
+
+        /**
+         * Names of modules contained in this project
+         */
+        private final List m_modules = new ArrayList();
+
+        /**
+         * Parent details, null if there is no parent element
+         */
+        private String[] m_parent;
+
+        /**
+         * Artifacts referenced by this project, keyed by section
+         */
+        private final Map m_references = newReferences();
+
+        /**
+         * @param pomFile XML file containing Maven project model
+         * @return key project details, along with the referenced artifacts
+         * @throws IOException if the file can't be read or isn't well-formed XML
+         */
+        static Header read( File pomFile )
+            throws IOException
+        {
+            // tree scans read thousands of headers, so reuse the parser (and its buffers) for each thread
+            XmlPullParser parser = (XmlPullParser) PARSER_POOL.get();
+            if( null == parser )
+            {
+                parser = new MXParser();
+            }
+            else
+            {
+                PARSER_POOL.set( null );
+            }
+
+            Reader reader = StreamFactory.newXmlReader( pomFile );
+            try
+            {
+                parser.setInput( reader );
+
+                Header header = new Header();
+                header.parse( parser );
+                return header;
+            }
+            catch( XmlPullParserException e )
+            {
+                throw new IOException( e.getLocalizedMessage() );
+            }
+            finally
+            {
+                IOUtil.close( reader );
+
+                // setInput resets the parser before the next document
+                PARSER_POOL.set( parser );
+            }
+        }
+
+        /**
+         * @param parser XML pull parser positioned at the start of the document
+         * @throws XmlPullParserException
+         * @throws IOException
+         */
+        private void parse( XmlPullParser parser )
+            throws XmlPullParserException,
+            IOException
+        {
+            if( XmlPullParser.START_TAG != parser.nextTag() )
+            {
+                throw new XmlPullParserException( "Missing project element" );
+            }
+
+            while( XmlPullParser.START_TAG == nextElement( parser ) )
+            {
+                String name = parser.getName();
+                if( "groupId".equals( name ) )
+                {
+                    m_groupId = readText( parser );
+                }
+                else if( "artifactId".equals( name ) )
+                {
+                    m_artifactId = readText( parser );
+                }
+                else if( "version".equals( name ) )
+                {
+                    m_version = readText( parser );
+                }
+                else if( "packaging".equals( name ) )
+                {
+                    m_packaging = readText( parser );
+                }
+                else if( "parent".equals( name ) )
+                {
+                    m_parent = new String[3];
+                    readChildren( parser, new String[]
+                    {
+                        "groupId", "artifactId", "version"
+                    }, m_parent );
+                }
+                else if( "modules".equals( name ) )
+                {
+                    while( XmlPullParser.START_TAG == nextElement( parser ) )
+                    {
+                        if( "module".equals( parser.getName() ) )
+                        {
+                            m_modules.add( readText( parser ) );
+                        }
+                        else
+                        {
+                            skipElement( parser );
+                        }
+                    }
+                }
+                else if( "properties".equals( name ) )
+                {
+                    String[] symbolicName = new String[1];
+                    readChildren( parser, new String[]
+                    {
+                        "bundle.symbolicName"
+                    }, symbolicName );
+                    m_symbolicName = symbolicName[0];
+                }
+                else if( "dependencies".equals( name ) )
+                {
+                    readDependencies( parser, "dependencies" );
+                }
+                else if( "dependencyManagement".equals( name ) )
+                {
+                    while( XmlPullParser.START_TAG == nextElement( parser ) )
+                    {
+                        if( "dependencies".equals( parser.getName() ) )
+                        {
+                            readDependencies( parser, "dependencyManagement" );
+                        }
+                        else
+                        {
+                            skipElement( parser );
+                        }
+                    }
+                }
+                else
+                {
+                    // no need to build anything for the rest
+                    skipElement( parser );
+                }
+            }
+
+            // check nothing is left dangling after the project element
+            int eventType = parser.next();
+            while( XmlPullParser.END_DOCUMENT != eventType )
+            {
+                eventType = parser.next();
+            }
+        }
+
+        /**
+         * @param parser XML pull parser positioned at a dependencies element
+         * @param section name of the section containing the dependencies
+         * @throws XmlPullParserException
+         * @throws IOException
+         */
+        private void readDependencies( XmlPullParser parser, String section )
+            throws XmlPullParserException,
+            IOException
+        {
+            while( XmlPullParser.START_TAG == nextElement( parser ) )
+            {
+                if( !"dependency".equals( parser.getName() ) )
+                {
+                    skipElement( parser );
+                    continue;
+                }
+
+                String groupId = null;
+                String artifactId = null;
+
+                while( XmlPullParser.START_TAG == nextElement( parser ) )
+                {
+                    String name = parser.getName();
+                    if( "groupId".equals( name ) )
+                    {
+                        groupId = readText( parser );
+                    }
+                    else if( "artifactId".equals( name ) )
+                    {
+                        artifactId = readText( parser );
+                    }
+                    else if( "exclusions".equals( name ) )
+                    {
+                        while( XmlPullParser.START_TAG == nextElement( parser ) )
+                        {
+                            String[] exclusion = new String[2];
+                            readChildren( parser, new String[]
+                            {
+                                "groupId", "artifactId"
+                            }, exclusion );
+                            addReference( m_references, "exclusions", exclusion[0], exclusion[1] );
+                        }
+                    }
+                    else
+                    {
+                        skipElement( parser );
+                    }
+                }
+
+                addReference( m_references, section, groupId, artifactId );
+            }
+        }
+
+        /**
+         * @return empty map of section name to referenced keys
+         */
+        static Map newReferences()
+        {
+            Map references = new LinkedHashMap();
+            for( int i = 0; i < REFERENCE_SECTIONS.length; i++ )
+            {
+                references.put( REFERENCE_SECTIONS[i], new LinkedHashSet() );
+            }
+            return references;
+        }
+
+        /**
+         * @param references map of section name to referenced keys
+         * @param section name of the referencing section
+         * @param groupId referenced group id
+         * @param artifactId referenced artifact id
+         */
+        static void addReference( Map references, String section, String groupId, String artifactId )
+        {
+            if( null != groupId && null != artifactId )
+            {
+                ( (Set) references.get( section ) ).add( groupId + ':' + artifactId );
+            }
+        }
+
+        /**
+         * @param parser XML pull parser
+         * @param names names of child elements to read
+         * @param values receives the child element values, in the same order as the names
+         * @throws XmlPullParserException
+         * @throws IOException
+         */
+        private static void readChildren( XmlPullParser parser, String[] names, String[] values )
+            throws XmlPullParserException,
+            IOException
+        {
+            List keys = Arrays.asList( names );
+            while( XmlPullParser.START_TAG == nextElement( parser ) )
+            {
+                int i = keys.indexOf( parser.getName() );
+                if( i >= 0 )
+                {
+                    values[i] = readText( parser );
+                }
+                else
+                {
+                    skipElement( parser );
+                }
+            }
+        }
+
+        /**
+         * @param parser XML pull parser
+         * @return the next start tag, or the end tag of the current element
+         * @throws XmlPullParserException
+         * @throws IOException
+         */
+        private static int nextElement( XmlPullParser parser )
+            throws XmlPullParserException,
+            IOException
+        {
+            int eventType = parser.next();
+            while( XmlPullParser.START_TAG != eventType && XmlPullParser.END_TAG != eventType
+                && XmlPullParser.END_DOCUMENT != eventType )
+            {
+                eventType = parser.next();
+            }
+            return eventType;
+        }
+
+        /**
+         * @param parser XML pull parser positioned at a start tag
+         * @return text content of the element, ignoring any nested elements
+         * @throws XmlPullParserException
+         * @throws IOException
+         */
+        private static String readText( XmlPullParser parser )
+            throws XmlPullParserException,
+            IOException
+        {
+            StringBuffer text = new StringBuffer();
+
+            int eventType = parser.next();
+            while( XmlPullParser.END_TAG != eventType )
+            {
+                if( XmlPullParser.TEXT == eventType )
+                {
+                    text.append( parser.getText() );
+                }
+                else if( XmlPullParser.START_TAG == eventType )
+                {
+                    skipElement( parser );
+                }
+                else if( XmlPullParser.END_DOCUMENT == eventType )
+                {
+                    throw new XmlPullParserException( "Unexpected end of document" );
+                }
+                eventType = parser.next();
+            }
+
+            return text.toString();
+        }
+
+        /**
+         * @param parser XML pull parser positioned at a start tag
+         * @throws XmlPullParserException
+         * @throws IOException
+         */
+        private static void skipElement( XmlPullParser parser )
+            throws XmlPullParserException,
+            IOException
+        {
+            for( int depth = 1; depth > 0; )
+            {
+                switch( parser.next() )
+                {
+                    case XmlPullParser.START_TAG:
+                        depth++;
+                        break;
+                    case XmlPullParser.END_TAG:
+                        depth--;
+                        break;
+                    case XmlPullParser.END_DOCUMENT:
+                        throw new XmlPullParserException( "Unexpected end of document" );
+                    default:
+                        break;
+                }
+            }
+        }
+
+        /**
+         * @return project group id, inherited from the parent if necessary
+         */
+        String getGroupId()
+        {
+            if( null == m_groupId && null != m_parent )
+            {
+                return m_parent[0];
+            }
+            return m_groupId;
+        }
+
+        /**
+         * @return project version, inherited from the parent if necessary
+         */
+        String getVersion()
+        {
+            if( null == m_version && null != m_parent )
+            {
+                return m_parent[2];
+            }
+            return m_version;
+        }
+
+        /**
+         * @return parents' unique project identifier, null if there is no parent
+         */
+        String getParentId()
+        {
+            if( null == m_parent )
+            {
+                return null;
+            }
+
+            // assume that the parent has pom packaging (seems reasonable assumption)
+            return m_parent[0] + ':' + m_parent[1] + ":pom:" + m_parent[2];
+        }
     }
 
     /**
@@ -962,14 +2201,13 @@ public class XppPom
     /**
      * Local utility method to check for child elements based on a simple XPATH query
      * 
-     * @param xpath simple XPATH query
+     * @param pathQuery simple XPATH query
      * @param clear remove matching elements
      * @return true if any child elements matched, otherwise false
      */
-    private boolean findChildren( String xpath, boolean clear )
+    private boolean findChildren( XppPathQuery pathQuery, boolean clear )
     {
-        XppPathQuery pathQuery = new XppPathQuery( xpath );
-        Xpp3Dom parent = pathQuery.queryParent( m_pom );
+        Xpp3Dom parent = pathQuery.queryParent( getDom() );
 
         if( null == parent )
         {
@@ -1000,7 +2238,7 @@ public class XppPom
     {
         if( obj instanceof XppPom )
         {
-            return getId().equals( ( (XppPom) obj ).getId() );
+            return getIdentity().sameAs( ( (XppPom) obj ).getIdentity() );
         }
         return false;
     }
@@ -1010,7 +2248,7 @@ public class XppPom
      */
     public int hashCode()
     {
-        return getId().hashCode();
+        return getIdentity().m_hashCode;
     }
 
     /**
@@ -0,0 +1,528 @@
+package org.ops4j.pax.construct.util;
+
+/*
+ * Copyright 2007 Stuart McCulloch
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+import org.codehaus.plexus.util.xml.Xpp3DomBuilder;
+import org.codehaus.plexus.util.xml.pull.XmlPullParser;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.codehaus.plexus.util.xml.pull.XmlSerializer;
+
+/**
+ * Original text of a parsed XML document along with the source range of each element. Edits made to the document
+ * are written back by splicing re-serialized elements into the original text, so anything that wasn't edited (such as
+ * whitespace, attribute quotes or entity references) stays exactly as it was. The original text is parsed again when
+ * the document is written, so editors only need to hold on to the text while the document is open.
+ */
+final class XppSource
+{
+    /**
+     * Original document text
+     */
+    private final String m_text;
+
+    /**
+     * Line separator used in the original document
+     */
+    private final String m_lineSeparator;
+
+    /**
+     * Document as it was parsed, used to find what has changed
+     */
+    private final Xpp3Dom m_original;
+
+    /**
+     * Maps elements in the original document to their source ranges
+     */
+    private final Map m_ranges;
+
+    /**
+     * @param text original document text
+     * @param original document parsed from the text
+     * @param ranges maps elements to their source ranges
+     */
+    private XppSource( String text, Xpp3Dom original, Map ranges )
+    {
+        m_text = text;
+        m_original = original;
+        m_ranges = ranges;
+
+        m_lineSeparator = getLineSeparator( text );
+    }
+
+    /**
+     * @param text original document text
+     * @return source details for the document, null if the source ranges don't match the parsed elements
+     * @throws IOException
+     */
+    static XppSource parse( String text )
+        throws IOException
+    {
+        XmlPullParser parser = RoundTripXml.createParser();
+
+        Xpp3Dom original;
+        int[] offsets;
+        try
+        {
+            parser.setInput( new StringReader( text ) );
+            original = Xpp3DomBuilder.build( parser, false );
+            offsets = RoundTripXml.getSourceOffsets( parser );
+        }
+        catch( XmlPullParserException e )
+        {
+            throw new IOException( e.getLocalizedMessage() );
+        }
+
+        RoundTripXml.releaseParser( parser );
+
+        if( null == offsets )
+        {
+            return null;
+        }
+
+        Map ranges = new IdentityHashMap();
+        if( mapRanges( original, offsets, 0, ranges ) != offsets.length )
+        {
+            return null;
+        }
+
+        return new XppSource( text, original, ranges );
+    }
+
+    /**
+     * @param node element in the original document
+     * @param offsets source ranges of elements in document order
+     * @param index index of the range belonging to this element
+     * @param ranges maps elements to their source ranges
+     * @return index of the range after this element and its children, -1 if we ran out of ranges
+     */
+    private static int mapRanges( Xpp3Dom node, int[] offsets, int index, Map ranges )
+    {
+        if( index < 0 || index + 4 > offsets.length )
+        {
+            return -1;
+        }
+
+        int[] range = new int[4];
+        System.arraycopy( offsets, index, range, 0, 4 );
+        ranges.put( node, range );
+
+        int next = index + 4;
+        for( int i = 0; i < node.getChildCount(); i++ )
+        {
+            next = mapRanges( node.getChild( i ), offsets, next, ranges );
+        }
+
+        return next;
+    }
+
+    /**
+     * @param dom current version of the document
+     * @return text of the current document, only re-serializing elements that changed
+     * @throws IOException
+     */
+    String patch( Xpp3Dom dom )
+        throws IOException
+    {
+        int[] range = (int[]) m_ranges.get( m_original );
+
+        StringBuffer buf = new StringBuffer( m_text.length() + 256 );
+
+        buf.append( m_text.substring( 0, range[0] ) );
+        patchElement( buf, dom, m_original, "", "  " );
+        buf.append( m_text.substring( range[3] ) );
+
+        return buf.toString();
+    }
+
+    /**
+     * @param buf where to write the current element
+     * @param node current element
+     * @param original original element it replaces
+     * @param indent indentation of the original element
+     * @param indentUnit indentation added for each level of nesting
+     * @throws IOException
+     */
+    private void patchElement( StringBuffer buf, Xpp3Dom node, Xpp3Dom original, String indent, String indentUnit )
+        throws IOException
+    {
+        int[] range = (int[]) m_ranges.get( original );
+
+        if( sameElement( node, original ) )
+        {
+            // nothing changed, copy the original text
+            buf.append( m_text.substring( range[0], range[3] ) );
+        }
+        else if( range[2] >= 0 && node.getChildCount() > 0 && original.getChildCount() > 0
+            && node.getName().equals( original.getName() ) && sameAttributes( node, original ) )
+        {
+            // same start and end tags, so we only need to patch the contents
+            buf.append( m_text.substring( range[0], range[1] ) );
+            patchChildren( buf, node, original, indent, indentUnit );
+            buf.append( m_text.substring( range[2], range[3] ) );
+        }
+        else
+        {
+            buf.append( serialize( node, indent, indentUnit ) );
+        }
+    }
+
+    /**
+     * @param buf where to write the current child elements
+     * @param node current element
+     * @param original original element it replaces
+     * @param indent indentation of the original element
+     * @param indentUnit indentation added for each level of nesting
+     * @throws IOException
+     */
+    private void patchChildren( StringBuffer buf, Xpp3Dom node, Xpp3Dom original, String indent, String indentUnit )
+        throws IOException
+    {
+        Xpp3Dom[] children = node.getChildren();
+        Xpp3Dom[] originalChildren = original.getChildren();
+
+        int[] matches = matchChildren( children, originalChildren );
+
+        // whitespace before each original child, reused for new children
+        String[] gaps = new String[originalChildren.length];
+        int mark = ( (int[]) m_ranges.get( original ) )[1];
+        for( int j = 0; j < originalChildren.length; j++ )
+        {
+            int[] range = (int[]) m_ranges.get( originalChildren[j] );
+            gaps[j] = m_text.substring( mark, range[0] );
+            mark = range[3];
+        }
+
+        String gap = gaps[0];
+        for( int i = 0; i < children.length; i++ )
+        {
+            int j = matches[i];
+            if( j >= 0 )
+            {
+                gap = gaps[j];
+            }
+            else if( !isWhitespace( gap ) )
+            {
+                gap = m_lineSeparator + indent + indentUnit;
+            }
+
+            String childIndent = getIndent( gap );
+            String childIndentUnit = indentUnit;
+            if( childIndent.length() > indent.length() && childIndent.startsWith( indent ) )
+            {
+                childIndentUnit = childIndent.substring( indent.length() );
+            }
+
+            buf.append( gap );
+            if( j >= 0 )
+            {
+                patchElement( buf, children[i], originalChildren[j], childIndent, childIndentUnit );
+            }
+            else
+            {
+                buf.append( serialize( children[i], childIndent, childIndentUnit ) );
+            }
+        }
+
+        // whitespace before the end tag
+        buf.append( m_text.substring( mark, ( (int[]) m_ranges.get( original ) )[2] ) );
+    }
+
+    /**
+     * Match current children to original children, first by finding unchanged children and then by pairing up
+     * remaining children with the same name. Matches are always in document order, any original children left over
+     * have been removed.
+     *
+     * @param children current child elements
+     * @param originalChildren original child elements
+     * @return index of the matching original child for each current child, -1 for new children
+     */
+    private static int[] matchChildren( Xpp3Dom[] children, Xpp3Dom[] originalChildren )
+    {
+        int[] matches = new int[children.length];
+        Arrays.fill( matches, -1 );
+
+        // index original children by content, so unchanged children are found without a scan
+        Map candidates = new HashMap();
+        for( int j = 0; j < originalChildren.length; j++ )
+        {
+            Integer key = new Integer( hashElement( originalChildren[j] ) );
+            List indices = (List) candidates.get( key );
+            if( null == indices )
+            {
+                indices = new ArrayList( 2 );
+                candidates.put( key, indices );
+            }
+            indices.add( new Integer( j ) );
+        }
+
+        int last = -1;
+        for( int i = 0; i < children.length; i++ )
+        {
+            List indices = (List) candidates.get( new Integer( hashElement( children[i] ) ) );
+            if( null == indices )
+            {
+                continue;
+            }
+
+            // drop candidates we've already gone past
+            while( !indices.isEmpty() && ( (Integer) indices.get( 0 ) ).intValue() <= last )
+            {
+                indices.remove( 0 );
+            }
+
+            for( int k = 0; k < indices.size(); k++ )
+            {
+                int j = ( (Integer) indices.get( k ) ).intValue();
+                if( sameElement( children[i], originalChildren[j] ) )
+                {
+                    matches[i] = j;
+                    last = j;
+                    indices.remove( k );
+                    break;
+                }
+            }
+        }
+
+        // edited children can only pair up with original children between the surrounding unchanged ones
+        int[] upperBounds = new int[children.length];
+        int upper = originalChildren.length;
+        for( int i = children.length - 1; i >= 0; i-- )
+        {
+            upperBounds[i] = upper;
+            if( matches[i] >= 0 )
+            {
+                upper = matches[i];
+            }
+        }
+
+        int lower = 0;
+        for( int i = 0; i < children.length; i++ )
+        {
+            if( matches[i] >= 0 )
+            {
+                lower = matches[i] + 1;
+                continue;
+            }
+
+            upper = upperBounds[i];
+
+            String name = children[i].getName();
+            for( int j = lower; j < upper; j++ )
+            {
+                if( name.equals( originalChildren[j].getName() ) )
+                {
+                    matches[i] = j;
+                    lower = j + 1;
+                    break;
+                }
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * @param node current element
+     * @param indent indentation of the line where the element starts
+     * @param indentUnit indentation added for each level of nesting
+     * @return serialized element
+     * @throws IOException
+     */
+    private String serialize( Xpp3Dom node, String indent, String indentUnit )
+        throws IOException
+    {
+        StringWriter writer = new StringWriter();
+
+        XmlSerializer serializer = RoundTripXml.createFragmentSerializer( m_lineSeparator + indent, indentUnit );
+        serializer.setOutput( writer );
+        node.writeToSerializer( null, serializer );
+        serializer.flush();
+
+        // surrounding whitespace comes from the original text
+        String text = writer.toString();
+        int start = 0;
+        while( start < text.length() && Character.isWhitespace( text.charAt( start ) ) )
+        {
+            start++;
+        }
+
+        return text.substring( start );
+    }
+
+    /**
+     * @param text original document text
+     * @return first line separator found in the text, or the platform line separator if there is none
+     */
+    private static String getLineSeparator( String text )
+    {
+        int i = text.indexOf( '\n' );
+        if( i > 0 && text.charAt( i - 1 ) == '\r' )
+        {
+            return "\r\n";
+        }
+        else if( i >= 0 )
+        {
+            return "\n";
+        }
+        else if( text.indexOf( '\r' ) >= 0 )
+        {
+            return "\r";
+        }
+
+        return System.getProperty( "line.separator" );
+    }
+
+    /**
+     * @param gap whitespace before an element
+     * @return indentation of the element, assuming it starts a new line
+     */
+    private static String getIndent( String gap )
+    {
+        int i = gap.length();
+        while( i > 0 && gap.charAt( i - 1 ) != '\n' && gap.charAt( i - 1 ) != '\r' )
+        {
+            i--;
+        }
+
+        return gap.substring( i );
+    }
+
+    /**
+     * @param text some text
+     * @return true if the text is only whitespace and contains at least one line break
+     */
+    private static boolean isWhitespace( String text )
+    {
+        boolean lineBreak = false;
+        for( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if( !Character.isWhitespace( c ) )
+            {
+                return false;
+            }
+            lineBreak = lineBreak || '\n' == c || '\r' == c;
+        }
+
+        return lineBreak;
+    }
+
+    /**
+     * @param node an element
+     * @return hash of the element and its content, consistent with {@link #sameElement(Xpp3Dom, Xpp3Dom)}
+     */
+    private static int hashElement( Xpp3Dom node )
+    {
+        int hash = node.getName().hashCode();
+
+        String value = node.getValue();
+        if( null != value )
+        {
+            hash = 31 * hash + value.hashCode();
+        }
+
+        for( int i = 0; i < node.getChildCount(); i++ )
+        {
+            hash = 31 * hash + hashElement( node.getChild( i ) );
+        }
+
+        return hash;
+    }
+
+    /**
+     * @param lhs an element
+     * @param rhs another element
+     * @return true if both elements would be serialized the same way
+     */
+    private static boolean sameElement( Xpp3Dom lhs, Xpp3Dom rhs )
+    {
+        if( lhs == rhs )
+        {
+            return true;
+        }
+
+        if( !lhs.getName().equals( rhs.getName() ) || !sameValue( lhs.getValue(), rhs.getValue() )
+            || !sameAttributes( lhs, rhs ) || lhs.getChildCount() != rhs.getChildCount() )
+        {
+            return false;
+        }
+
+        for( int i = 0; i < lhs.getChildCount(); i++ )
+        {
+            if( !sameElement( lhs.getChild( i ), rhs.getChild( i ) ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param lhs an element
+     * @param rhs another element
+     * @return true if both elements have the same attributes, ignoring internal attributes used when merging XML
+     */
+    private static boolean sameAttributes( Xpp3Dom lhs, Xpp3Dom rhs )
+    {
+        String[] names = lhs.getAttributeNames();
+        int count = 0;
+        for( int i = 0; i < names.length; i++ )
+        {
+            if( !Xpp3Dom.CHILDREN_COMBINATION_MODE_ATTRIBUTE.equals( names[i] ) )
+            {
+                if( !sameValue( lhs.getAttribute( names[i] ), rhs.getAttribute( names[i] ) ) )
+                {
+                    return false;
+                }
+                count++;
+            }
+        }
+
+        names = rhs.getAttributeNames();
+        for( int i = 0; i < names.length; i++ )
+        {
+            if( !Xpp3Dom.CHILDREN_COMBINATION_MODE_ATTRIBUTE.equals( names[i] ) )
+            {
+                count--;
+            }
+        }
+
+        return 0 == count;
+    }
+
+    /**
+     * @param lhs a string, may be null
+     * @param rhs another string, may be null
+     * @return true if the strings are the same
+     */
+    private static boolean sameValue( String lhs, String rhs )
+    {
+        return null == lhs ? null == rhs : lhs.equals( rhs );
+    }
+}